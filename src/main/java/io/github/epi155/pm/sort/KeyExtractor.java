@@ -0,0 +1,34 @@
+package io.github.epi155.pm.sort;
+
+/**
+ * Normalized KEY-SORT extractor
+ * <p>
+ * The key is computed once per record, when the record is read,
+ * and carried with the record through the temporary files:
+ * records are sorted and merged by unsigned byte comparison of their keys,
+ * a key that is a prefix of another one comes first.
+ * Useful when the comparison of the records is expensive (dates or decimals to be parsed).
+ * </p>
+ * <p>
+ * Example, descending date (dd/MM/yyyy at offset 10):
+ * </p>
+ * <pre>
+ * class DateKey implements KeyExtractor {
+ *     &#64;Override
+ *     public byte[] keyOf(String line) {
+ *         int yyyymmdd = Integer.parseInt(line.substring(16, 20) + line.substring(13, 15) + line.substring(10, 12));
+ *         int desc = ~yyyymmdd;
+ *         return new byte[] { (byte) (desc &gt;&gt;&gt; 24), (byte) (desc &gt;&gt;&gt; 16), (byte) (desc &gt;&gt;&gt; 8), (byte) desc };
+ *     }
+ * }
+ * </pre>
+ */
+public interface KeyExtractor {
+    /**
+     * Provides the binary-comparable key of the record
+     *
+     * @param line record
+     * @return normalized key (at most 65535 bytes)
+     */
+    byte[] keyOf(String line);
+}
@@ -0,0 +1,76 @@
+package io.github.epi155.pm.sort;
+
+import java.util.Comparator;
+
+/**
+ * Record with its normalized key, as handled by the split and merge phases.
+ * <p>
+ * The key is prepended to the record: the first char is the key length,
+ * then one char (0-255) for each key byte, then the original record.
+ * Comparing these chars is the unsigned comparison of the keys,
+ * and the temporary files store them as any other record.
+ * </p>
+ */
+final class KeyedLine {
+    /**
+     * Order of the keyed records: unsigned comparison of their keys
+     */
+    static final Comparator<String> ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String o1, String o2) {
+            int len1 = o1.charAt(0);
+            int len2 = o2.charAt(0);
+            int len = Math.min(len1, len2);
+            for (int k = 1; k <= len; k++) {
+                char c1 = o1.charAt(k);
+                char c2 = o2.charAt(k);
+                if (c1 != c2)
+                    return c1 < c2 ? -1 : 1;
+            }
+            return len1 - len2;
+        }
+    };
+
+    private KeyedLine() {
+    }
+
+    static String wrap(KeyExtractor extractor, String line) {
+        byte[] key = extractor.keyOf(line);
+        if (key.length > Character.MAX_VALUE)
+            throw new IllegalArgumentException("Key too long: " + key.length + " bytes");
+        StringBuilder sb = new StringBuilder(1 + key.length + line.length());
+        sb.append((char) key.length);
+        for (byte b : key) {
+            sb.append((char) (b & 0xFF));
+        }
+        return sb.append(line).toString();
+    }
+
+    static String unwrap(String keyed) {
+        return keyed.substring(1 + keyed.charAt(0));
+    }
+
+    /**
+     * Order of the original records, by their keys
+     *
+     * @param extractor key extractor
+     * @return record comparator
+     */
+    static Comparator<String> comparatorOf(final KeyExtractor extractor) {
+        return new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                byte[] k1 = extractor.keyOf(o1);
+                byte[] k2 = extractor.keyOf(o2);
+                int len = Math.min(k1.length, k2.length);
+                for (int k = 0; k < len; k++) {
+                    int b1 = k1[k] & 0xFF;
+                    int b2 = k2[k] & 0xFF;
+                    if (b1 != b2)
+                        return b1 < b2 ? -1 : 1;
+                }
+                return k1.length - k2.length;
+            }
+        };
+    }
+}
@@ -0,0 +1,31 @@
+package io.github.epi155.pm.sort;
+
+/**
+ * Layer to set the SUM or <i>REDUCE</i> option of an aggregation by key, without sorting
+ * <p>
+ * The groups are written in no particular order: in order of first appearance when they fit in memory,
+ * otherwise partition by partition.
+ * The records of a group are given to the accumulator in input order, one group after the other.
+ * </p>
+ */
+public interface LayerGroupBy {
+    /**
+     * Maps each group of records with equal key in their summary
+     *
+     * @param rule rule for accumulating records
+     * @return {@link LayerOutRec} instance
+     */
+    LayerOutRec sum(SumFields rule);
+
+    /**
+     * Accumulates each group of records with equal key into a single record, using a custom accumulation function
+     * <p>
+     * The record of a group is returned when the first record of the next group is given,
+     * the one of the last group by {@link RecordAccumulator#flush() flush}; it is sent to the output file of that key.
+     * </p>
+     *
+     * @param accumulator custom accumulation function
+     * @return {@link LayerOutRec} instance
+     */
+    LayerOutRec reduce(RecordAccumulator accumulator);
+}
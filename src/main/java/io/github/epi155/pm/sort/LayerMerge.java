@@ -0,0 +1,39 @@
+package io.github.epi155.pm.sort;
+
+import java.util.Comparator;
+
+/**
+ * Layer to define the merge order
+ */
+public interface LayerMerge {
+    /**
+     * Merge the records using natural order
+     *
+     * @return {@link LayerPostSort} instance
+     */
+    LayerPostSort merge();
+
+    /**
+     * Merge the records using the given comparator
+     *
+     * @param comparator record comparator
+     * @return {@link LayerPostSort} instance
+     */
+    LayerPostSort merge(Comparator<String> comparator);
+
+    /**
+     * Merge the records using the given KEY-SORT fields
+     *
+     * @param fields sort fields
+     * @return {@link LayerPostSort} instance
+     */
+    LayerPostSort merge(SortFields fields);
+
+    /**
+     * Merge the records by the normalized key provided by the given extractor
+     *
+     * @param extractor normalized key extractor
+     * @return {@link LayerPostSort} instance
+     */
+    LayerPostSort merge(KeyExtractor extractor);
+}
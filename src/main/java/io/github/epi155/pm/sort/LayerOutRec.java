@@ -1,9 +1,22 @@
 package io.github.epi155.pm.sort;
 
 /**
- * Layer to set the OUTREC option and define the output file
+ * Layer to set the STOPAFT and OUTREC options and define the output file
  */
 public interface LayerOutRec extends LayerSortOut {
+    /**
+     * Limits the output to its first records, as the DFSORT OUTFIL option {@code STOPAFT} on the sorted records
+     * <p>
+     * Without a reduction, only the first <i>n</i> records in sort order are kept while the input is read,
+     * in a bounded heap, when <i>n</i> does not exceed the records in memory: nothing is saved or merged.
+     * Otherwise the final merge stops once <i>n</i> records have been written.
+     * </p>
+     *
+     * @param n maximum number of output records
+     * @return {@link LayerOutRec} instance
+     */
+    LayerOutRec limit(int n);
+
     /**
      * Edit the output record after sorting
      *
@@ -1,10 +1,26 @@
 package io.github.epi155.pm.sort;
 
+import java.io.File;
+
 /**
- * Layer to set the ALLDUPS, NODUPS, FIRST, LAST, FIRSTDUP, LASTDUP, SUM, <i>REDUCE</i>
+ * Layer to set the sorted file to merge with, the ALLDUPS, NODUPS, FIRST, LAST, FIRSTDUP, LASTDUP, SUM, <i>REDUCE</i>
  * OUTREC options and define the output file
  */
 public interface LayerPostSort extends LayerOutRec {
+    /**
+     * Merges the sorted records with a file already sorted in the same order (incremental sort).
+     * <p>
+     *     Only the input is sorted, then it is merged with the sorted file in a single pass:
+     *     a delta can be added to a large master file without sorting the master again.
+     *     The records of the sorted file come before the input records with equal KEY-SORT,
+     *     so {@link #last()} keeps the input record (upsert).
+     * </p>
+     *
+     * @param sortedFile file already sorted
+     * @return {@link LayerPostSort} instance
+     */
+    LayerPostSort mergeWith(File sortedFile);
+
     /**
      * Limits the records selected to those with KEY-SORT values that occur more than once.
      * <p>
@@ -69,6 +85,9 @@ public interface LayerPostSort extends LayerOutRec {
 
     /**
      * This control statement maps each group of records with equal KEY-SORT in their summary
+     * <p>
+     * An {@link SumFields#isAssociative() associative} rule is also applied before the final merge.
+     * </p>
      * @param rule  rule for accumulating records
      * @return {@link LayerOutRec} instance
      */
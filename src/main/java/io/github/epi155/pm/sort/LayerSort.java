@@ -20,4 +20,39 @@ public interface LayerSort {
      * @return {@link LayerOutRec} instance
      */
     LayerPostSort sort();
+
+    /**
+     * Sort the records using the given KEY-SORT fields
+     * <p>
+     * The fields have a fixed-width normalized key, the chunks are sorted in memory by radix sort.
+     * </p>
+     *
+     * @param fields sort fields
+     * @return {@link LayerOutRec} instance
+     */
+    LayerPostSort sort(SortFields fields);
+
+    /**
+     * Sort the records by the normalized key provided by the given extractor
+     * <p>
+     * The key is computed once per record, instead of once per comparison.
+     * </p>
+     *
+     * @param extractor normalized key extractor
+     * @return {@link LayerOutRec} instance
+     */
+    LayerPostSort sort(KeyExtractor extractor);
+
+    /**
+     * Groups the records by the normalized key provided by the given extractor, without sorting them
+     * <p>
+     * The groups are collected in a hash table; when memory runs out,
+     * the records are spread over temporary partition files by key hash, each partition grouped on its own.
+     * Useful for an aggregation whose output order does not matter.
+     * </p>
+     *
+     * @param extractor normalized key extractor
+     * @return {@link LayerGroupBy} instance
+     */
+    LayerGroupBy groupBy(KeyExtractor extractor);
 }
@@ -1,9 +1,14 @@
 package io.github.epi155.pm.sort;
 
 import java.io.File;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
 
 /**
- * Layer to set the name of the input file
+ * Layer to set the input: file, stream or records to be sorted, or sorted files to be merged
  */
 public interface LayerSortIn {
     /**
@@ -13,4 +18,106 @@ public interface LayerSortIn {
      * @return {@link LayerSkipRecord} instance
      */
     LayerSkipRecord sortIn(File unsortedFile);
+
+    /**
+     * Set the files to be sorted together.
+     * <p>
+     * Each file is read, filtered and edited by its own thread; {@code skipRecord} applies to each file,
+     * {@code stopAfter} to the whole input (the files are then read one after the other).
+     * Records with equal KEY-SORT keep the order of the files.
+     * </p>
+     *
+     * @param unsortedFiles files to be sorted
+     * @return {@link LayerSkipRecord} instance
+     */
+    LayerSkipRecord sortIn(File... unsortedFiles);
+
+    /**
+     * Set the files to be sorted together.
+     * <p>
+     * Each file is read, filtered and edited by its own thread; {@code skipRecord} applies to each file,
+     * {@code stopAfter} to the whole input (the files are then read one after the other).
+     * Records with equal KEY-SORT keep the order of the files.
+     * </p>
+     *
+     * @param unsortedPaths files to be sorted
+     * @return {@link LayerSkipRecord} instance
+     */
+    LayerSkipRecord sortIn(List<Path> unsortedPaths);
+
+    /**
+     * Set the file to be sorted.
+     *
+     * @param unsortedPath file to be sorted
+     * @return {@link LayerSkipRecord} instance
+     */
+    LayerSkipRecord sortIn(Path unsortedPath);
+
+    /**
+     * Set the stream to be sorted, decoded with the sort charset.
+     * <p>
+     * The stream is read to the end when the sorted output is produced, and it is not closed.
+     * </p>
+     *
+     * @param unsortedStream stream to be sorted
+     * @return {@link LayerSkipRecord} instance
+     */
+    LayerSkipRecord sortIn(InputStream unsortedStream);
+
+    /**
+     * Set the reader to be sorted.
+     * <p>
+     * The reader is read to the end when the sorted output is produced, and it is not closed.
+     * </p>
+     *
+     * @param unsortedReader reader to be sorted
+     * @return {@link LayerSkipRecord} instance
+     */
+    LayerSkipRecord sortIn(Reader unsortedReader);
+
+    /**
+     * Set the records to be sorted.
+     * <p>
+     * A new iterator is requested for each sorted output; a null record ends the input.
+     * </p>
+     *
+     * @param unsortedRecords records to be sorted
+     * @return {@link LayerSkipRecord} instance
+     */
+    LayerSkipRecord sortIn(Iterable<String> unsortedRecords);
+
+    /**
+     * Set the records to be sorted.
+     * <p>
+     * The iterator is consumed when the sorted output is produced; a null record ends the input.
+     * </p>
+     *
+     * @param unsortedRecords records to be sorted
+     * @return {@link LayerSkipRecord} instance
+     */
+    LayerSkipRecord sortIn(Iterator<String> unsortedRecords);
+
+    /**
+     * Set the files to be merged, already sorted (DFSORT {@code MERGE}).
+     * <p>
+     * The files are not split and sorted again, they are the sources of the merge;
+     * records with equal KEY-SORT keep the order of the files.
+     * </p>
+     *
+     * @param sortedFiles sorted files
+     * @return {@link LayerVerify} instance
+     */
+    LayerVerify mergeIn(File... sortedFiles);
+
+    /**
+     * Set the files to be merged, already sorted (DFSORT {@code MERGE}).
+     * <p>
+     * The files are not split and sorted again, they are the sources of the merge;
+     * records with equal KEY-SORT keep the order of the files.
+     * </p>
+     *
+     * @param sortedPaths sorted files
+     * @return {@link LayerVerify} instance
+     */
+    LayerVerify mergeIn(List<Path> sortedPaths);
 }
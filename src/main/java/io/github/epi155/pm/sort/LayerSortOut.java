@@ -12,4 +12,43 @@ public interface LayerSortOut {
      * @param sortedFile sorted file
      */
     void sortOut(File sortedFile);
+
+    /**
+     * Set the sorted files of a partitioned output
+     * <p>
+     * The records are split by key ranges, chosen on a sample of the records taken while the input is split:
+     * each file is sorted, its records come after those of the previous file,
+     * and the records with equal keys are in the same file.
+     * The partitions are merged concurrently; with a {@link LayerPostSort#sum(SumFields) sum}
+     * or a custom {@link LayerPostSort#reduce(RecordAccumulator) reduce}, a limit, or files already sorted
+     * ({@link LayerPostSort#mergeWith(File) mergeWith}, {@link LayerSortIn#mergeIn(File...) mergeIn}), a single merge feeds all the files,
+     * and a reduced record must keep the key of its group.
+     * When the distinct keys are fewer than the files, the last files are empty.
+     * </p>
+     *
+     * @param partitions sorted files, in key order
+     */
+    void sortOut(File... partitions);
+
+    /**
+     * Set several output files, each one with its own condition and edit (as DFSORT {@code OUTFIL})
+     * <p>
+     * The sorted records are read once, by the last merge pass, and each record is written to every output file
+     * whose condition it satisfies; each file is written by its own thread.
+     * </p>
+     *
+     * @param outputs output file definitions
+     */
+    void sortOut(OutFil... outputs);
+
+    /**
+     * Provides the sorted records, without writing them to a file
+     * <p>
+     * The input is read and split into sorted files before returning,
+     * the last merge pass runs as the records are requested.
+     * </p>
+     *
+     * @return {@link RecordIterator} instance
+     */
+    RecordIterator sortOut();
 }
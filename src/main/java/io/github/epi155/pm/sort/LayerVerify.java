@@ -0,0 +1,16 @@
+package io.github.epi155.pm.sort;
+
+/**
+ * Layer to set the order check of the inputs and define the merge order
+ */
+public interface LayerVerify extends LayerMerge {
+    /**
+     * Checks that each input is sorted
+     * <p>
+     * A record smaller than the previous one of the same input stops the merge with a {@link SortException}.
+     * </p>
+     *
+     * @return {@link LayerMerge} instance
+     */
+    LayerMerge verify();
+}
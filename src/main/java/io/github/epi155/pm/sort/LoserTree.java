@@ -0,0 +1,89 @@
+package io.github.epi155.pm.sort;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Tournament (loser) tree over N sorted sources.
+ * <p>
+ * Each call to {@link #next()} costs about log<sub>2</sub>(N) comparisons.
+ * Records with equal KEY-SORT are returned in source order (sort stability: Source_k &lt; Source_{k+1}).
+ * </p>
+ */
+class LoserTree {
+    private final Comparator<String> comparator;
+    private final RecordSource.RecordReader[] readers;
+    private final String[] heads;
+    private final int[] tree;   // tree[0]: winner, tree[1..k-1]: losers
+    private final int k;
+
+    LoserTree(Comparator<String> comparator, List<? extends RecordSource.RecordReader> sources) throws IOException {
+        this.comparator = comparator;
+        this.k = sources.size();
+        this.readers = sources.toArray(new RecordSource.RecordReader[k]);
+        this.heads = new String[k];
+        this.tree = new int[Math.max(1, k)];
+        for (int i = 0; i < k; i++) {
+            heads[i] = readers[i].readLine();
+        }
+        build();
+    }
+
+    private void build() {
+        if (k == 0)
+            return;
+        int[] winner = new int[2 * k];
+        for (int n = 2 * k - 1; n >= k; n--) {
+            winner[n] = n - k;
+        }
+        for (int n = k - 1; n >= 1; n--) {
+            int a = winner[2 * n];
+            int b = winner[2 * n + 1];
+            if (beats(a, b)) {
+                winner[n] = a;
+                tree[n] = b;
+            } else {
+                winner[n] = b;
+                tree[n] = a;
+            }
+        }
+        tree[0] = k == 1 ? 0 : winner[1];
+    }
+
+    private boolean beats(int a, int b) {
+        String sa = heads[a];
+        String sb = heads[b];
+        if (sa == null)
+            return false;   // end-of-file: loses against everything
+        if (sb == null)
+            return true;
+        int comp = comparator.compare(sa, sb);
+        return comp < 0 || (comp == 0 && a < b);
+    }
+
+    /**
+     * Provides the smallest pending record
+     *
+     * @return next record, or null when all sources are exhausted
+     * @throws IOException error reading a source
+     */
+    String next() throws IOException {
+        if (k == 0)
+            return null;
+        int w = tree[0];
+        String line = heads[w];
+        if (line == null)
+            return null;
+        heads[w] = readers[w].readLine();
+        for (int n = (w + k) / 2; n >= 1; n /= 2) {
+            if (beats(tree[n], w)) {
+                int t = tree[n];
+                tree[n] = w;
+                w = t;
+            }
+        }
+        tree[0] = w;
+        return line;
+    }
+}
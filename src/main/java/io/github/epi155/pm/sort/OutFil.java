@@ -0,0 +1,75 @@
+package io.github.epi155.pm.sort;
+
+import java.io.File;
+
+/**
+ * Output file definition, as the IBM DFSORT control statement {@code OUTFIL FNAMES=...,INCLUDE=...,OUTREC=...}
+ * <p>
+ * Example, the records of two regions written to their own files in a single sort:
+ * </p>
+ * <pre>
+ * SortEngine.using(256)
+ *     .sortIn(source)
+ *     .sort()
+ *     .sortOut(OutFil.of(northFile).include(s -&gt; s.startsWith("N")),
+ *              OutFil.of(southFile).include(s -&gt; s.startsWith("S")).outRec(s -&gt; s.substring(1)));
+ * </pre>
+ * <p>
+ * Each output record is tested against the condition of every output file, and written (edited) to each one it satisfies.
+ * </p>
+ */
+public final class OutFil {
+    private final File target;
+    private final SortFilter includeFilter;     // Nullable
+    private final RecordEditor outRecFcn;       // Nullable
+
+    private OutFil(File target, SortFilter includeFilter, RecordEditor outRecFcn) {
+        this.target = target;
+        this.includeFilter = includeFilter;
+        this.outRecFcn = outRecFcn;
+    }
+
+    /**
+     * Creates an output file definition, that receives all the output records
+     *
+     * @param target output file
+     * @return {@link OutFil} instance
+     */
+    public static OutFil of(File target) {
+        if (target == null)
+            throw new IllegalArgumentException("Output file is required");
+        return new OutFil(target, null, null);
+    }
+
+    /**
+     * Sets the condition to include (or discard) the output records in this file
+     *
+     * @param test include condition
+     * @return new {@link OutFil} instance
+     */
+    public OutFil include(SortFilter test) {
+        return new OutFil(target, test, outRecFcn);
+    }
+
+    /**
+     * Edits the records written to this file
+     *
+     * @param outFcn edit function
+     * @return new {@link OutFil} instance
+     */
+    public OutFil outRec(RecordEditor outFcn) {
+        return new OutFil(target, includeFilter, outFcn);
+    }
+
+    File target() {
+        return target;
+    }
+
+    boolean test(String line) {
+        return includeFilter == null || includeFilter.test(line);
+    }
+
+    String apply(String line) {
+        return outRecFcn == null ? line : outRecFcn.apply(line);
+    }
+}
@@ -12,4 +12,11 @@ abstract class PmLayerSort implements LayerSort {
     public LayerPostSort sort() {
         return sort(naturalOrder);
     }
+
+    public LayerPostSort merge() {
+        return merge(naturalOrder);
+    }
+
+    public abstract LayerPostSort merge(Comparator<String> comparator);
+
 }
@@ -5,13 +5,19 @@ import java.nio.charset.Charset;
 
 class PmSortBuilder implements SortBuilderRecord {
     private int maxRecord;
+    private long maxMemory;
     private Charset charset;
     private int maxThread;
     private File swap;
+    private boolean compress;
+    private boolean frontCoding;
+    private boolean parallelInput;
+    private boolean replacementSelection;
+    private int fanIn;
 
     @Override
     public LayerSortIn build() {
-        return new PmSortEngine(maxRecord, charset, maxThread, swap);
+        return new PmSortEngine(maxRecord, maxMemory, charset, maxThread, swap, compress, frontCoding, parallelInput, replacementSelection, fanIn);
     }
 
     @Override
@@ -20,6 +26,12 @@ class PmSortBuilder implements SortBuilderRecord {
         return this;
     }
 
+    @Override
+    public SortBuilderCharset withMaxMemory(long maxMemory) {
+        this.maxMemory = maxMemory;
+        return this;
+    }
+
     @Override
     public SortBuilderThread withCharset(Charset charset) {
         this.charset = charset;
@@ -33,14 +45,44 @@ class PmSortBuilder implements SortBuilderRecord {
     }
 
     @Override
-    public SortBuilder withTempDirectory(File tempDirectory) {
+    public SortBuilderCompress withTempDirectory(File tempDirectory) {
         this.swap = tempDirectory;
         return this;
     }
 
     @Override
-    public SortBuilder withTempDirectory(String tempDirectory) {
+    public SortBuilderCompress withTempDirectory(String tempDirectory) {
         this.swap = new File(tempDirectory);
         return this;
     }
+
+    @Override
+    public SortBuilderFrontCoding withCompression(boolean compress) {
+        this.compress = compress;
+        return this;
+    }
+
+    @Override
+    public SortBuilderInput withFrontCoding(boolean frontCoding) {
+        this.frontCoding = frontCoding;
+        return this;
+    }
+
+    @Override
+    public SortBuilderSplit withParallelInput(boolean parallelInput) {
+        this.parallelInput = parallelInput;
+        return this;
+    }
+
+    @Override
+    public SortBuilderMerge withReplacementSelection(boolean replacementSelection) {
+        this.replacementSelection = replacementSelection;
+        return this;
+    }
+
+    @Override
+    public SortBuilder withFanIn(int fanIn) {
+        this.fanIn = fanIn;
+        return this;
+    }
 }
@@ -2,46 +2,248 @@ package io.github.epi155.pm.sort;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Phaser;
+import java.util.concurrent.*;
 
 class PmSortEngine implements LayerSortIn {
     private static final String PREFIX = "sort-";
     private static final String SUFFIX = ".tmp";
     private static final int DEFAULT_MAX = 2048;
+    private static final int DEFAULT_FAN_IN = 16;
+    // retained heap estimate (64-bit JVM): String object, backing array header, list slot
+    private static final int STRING_SIZE = 24;
+    private static final int ARRAY_HEADER = 16;
+    private static final int SLOT_SIZE = 8;
+    private static final int HEAP_ENTRY_SIZE = 32;
+    private static final int MAP_ENTRY_SIZE = 48;
+    private static final long MIN_SLICE_SIZE = 4L * 1024 * 1024;
+    private static final int SAMPLE_SIZE = 4096;
+    private static final int MAX_DEPTH = 4;     // hash partitioning levels of a group by
+    private static final int BATCH_SIZE = 1024; // records handed to an output thread at a time
+    private static final int MAX_BATCH = 4;     // batches waiting for each output thread
     private final File swap;
     private final int maxNumRecord;
+    private final long maxMemory;
     private final Charset charset;
     private final int maxThread;
+    private final int fanIn;
+    private final boolean compress;
+    private final boolean frontCoding;
+    private final boolean parallelInput;
+    private final boolean replacementSelection;
 
-    public PmSortEngine(int maxNumRecord, Charset charset, int maxThread, File tempDirectory) {
-        this.maxNumRecord = maxNumRecord>0 ? maxNumRecord : DEFAULT_MAX;
+    public PmSortEngine(int maxNumRecord, long maxMemory, Charset charset, int maxThread, File tempDirectory,
+                        boolean compress, boolean frontCoding, boolean parallelInput, boolean replacementSelection,
+                        int fanIn) {
+        this.maxMemory = maxMemory>0 ? maxMemory : 0;
+        this.maxNumRecord = maxNumRecord>0 ? maxNumRecord : (maxMemory>0 ? Integer.MAX_VALUE : DEFAULT_MAX);
         this.charset = charset!=null ? charset : StandardCharsets.UTF_8;
         this.maxThread = maxThread>0 ? maxThread : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
         this.swap = tempDirectory;  // Nullable
+        this.compress = compress;
+        this.frontCoding = frontCoding;
+        this.parallelInput = parallelInput && isLineAligned(this.charset);
+        this.replacementSelection = replacementSelection;
+        this.fanIn = fanIn>1 ? fanIn : DEFAULT_FAN_IN;
     }
 
     @Override
     public LayerSkipRecord sortIn(File unsortedFile) {
-        return this.new PmSortIn(unsortedFile);
+        return this.new PmSortIn(Collections.singletonList(RecordSource.of(unsortedFile)), false);
     }
 
-    private class PmSortIn extends PmLayerSort implements LayerSkipRecord {
-        private final File source;
+    @Override
+    public LayerSkipRecord sortIn(File... unsortedFiles) {
+        List<RecordSource> inputs = new ArrayList<>(unsortedFiles.length);
+        for (File file : unsortedFiles) {
+            inputs.add(RecordSource.of(file));
+        }
+        return this.new PmSortIn(inputs, false);
+    }
+
+    @Override
+    public LayerSkipRecord sortIn(List<Path> unsortedPaths) {
+        List<RecordSource> inputs = new ArrayList<>(unsortedPaths.size());
+        for (Path path : unsortedPaths) {
+            inputs.add(RecordSource.of(path.toFile()));
+        }
+        return this.new PmSortIn(inputs, false);
+    }
+
+    @Override
+    public LayerVerify mergeIn(File... sortedFiles) {
+        List<RecordSource> inputs = new ArrayList<>(sortedFiles.length);
+        for (File file : sortedFiles) {
+            inputs.add(RecordSource.of(file));
+        }
+        return this.new PmSortIn(inputs, true);
+    }
+
+    @Override
+    public LayerVerify mergeIn(List<Path> sortedPaths) {
+        List<RecordSource> inputs = new ArrayList<>(sortedPaths.size());
+        for (Path path : sortedPaths) {
+            inputs.add(RecordSource.of(path.toFile()));
+        }
+        return this.new PmSortIn(inputs, true);
+    }
+
+    @Override
+    public LayerSkipRecord sortIn(Path unsortedPath) {
+        return this.new PmSortIn(Collections.singletonList(RecordSource.of(unsortedPath.toFile())), false);
+    }
+
+    @Override
+    public LayerSkipRecord sortIn(InputStream unsortedStream) {
+        return this.new PmSortIn(Collections.singletonList(RecordSource.of(unsortedStream)), false);
+    }
+
+    @Override
+    public LayerSkipRecord sortIn(Reader unsortedReader) {
+        return this.new PmSortIn(Collections.singletonList(RecordSource.of(unsortedReader)), false);
+    }
+
+    @Override
+    public LayerSkipRecord sortIn(Iterable<String> unsortedRecords) {
+        return this.new PmSortIn(Collections.singletonList(RecordSource.of(unsortedRecords)), false);
+    }
+
+    @Override
+    public LayerSkipRecord sortIn(Iterator<String> unsortedRecords) {
+        return this.new PmSortIn(Collections.singletonList(RecordSource.of(unsortedRecords)), false);
+    }
+
+    private static class Slot {
+        private RecordSource source = null;     // null until the source is ready
+        private boolean dropped = false;        // beyond the end-of-file mark, disposed when ready
+    }
+
+    /*
+     * uniform sample of the records of a splitter (algorithm R)
+     */
+    private static class Reservoir {
+        private final List<String> lines = new ArrayList<>();
+        private final Random random = new Random();
+        private long count = 0;
+
+        private void offer(String line) {
+            count++;
+            if (lines.size() < SAMPLE_SIZE) {
+                lines.add(line);
+            } else {
+                long k = (long) (random.nextDouble() * count);
+                if (k < SAMPLE_SIZE)
+                    lines.set((int) k, line);
+            }
+        }
+    }
+
+    /*
+     * reduction of a group of equal records before the final merge,
+     * the final reorganization of the reduced groups gives the same result
+     */
+    private interface GroupReducer {
+        String reduce(List<String> group);
+    }
+
+    /*
+     * built-in reorganization: fed with the records as they are merged (keyed, with a key extractor),
+     * so that the groups are found by comparing the carried keys; provides the output records
+     */
+    private interface RunAccumulator extends RecordAccumulator {
+    }
+
+    private static class HeapEntry {
+        private final int run;
+        private final long seq;
+        private final String line;
+
+        private HeapEntry(int run, long seq, String line) {
+            this.run = run;
+            this.seq = seq;
+            this.line = line;
+        }
+    }
+
+    /*
+     * a byte range can start just after any line feed byte only if
+     * the line feed is a single byte that is never part of another character
+     */
+    private static boolean isLineAligned(Charset charset) {
+        if (charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII) ||
+            charset.equals(StandardCharsets.ISO_8859_1))
+            return true;
+        return charset.canEncode() && charset.newEncoder().maxBytesPerChar() == 1 &&
+            Arrays.equals("\n".getBytes(charset), new byte[]{'\n'});
+    }
+
+    private static long sizeOf(String line) {
+        return STRING_SIZE + ((ARRAY_HEADER + 2L * line.length() + 7) & ~7L) + SLOT_SIZE;
+    }
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SortException(new InterruptedIOException(e.getMessage()), "Sort interrupted");
+        } catch (ExecutionException e) {
+            throw propagate(e.getCause());
+        }
+    }
+
+    private static RuntimeException propagate(Throwable cause) {
+        if (cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+        if (cause instanceof Error)
+            throw (Error) cause;
+        throw new IllegalStateException(cause);
+    }
+
+    private static void dispose(RecordSource source) {
+        try {
+            source.dispose();
+        } catch (IOException e) {
+            throw new SortException(e, "Error deleting temporary file %s", source.name());
+        }
+    }
+
+    private static String namesOf(List<RecordSource> sources) {
+        StringBuilder sb = new StringBuilder();
+        for (RecordSource source : sources) {
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append(source.name());
+        }
+        return sb.toString();
+    }
+
+    private class PmSortIn extends PmLayerSort implements LayerSkipRecord, LayerVerify {
+        private final List<RecordSource> inputs;
+        private final boolean presorted;    // merge of sorted inputs
+        private boolean verify = false;
         private RecordEditor inRecFcn = null;
         private SortFilter includeFilter = null;
         private int nmSkip = 0;
         private int nmStop = Integer.MAX_VALUE;
 
-        public PmSortIn(File unsortedFile) {
-            this.source = unsortedFile;
+        public PmSortIn(List<RecordSource> inputs, boolean presorted) {
+            this.inputs = inputs;
+            this.presorted = presorted;
         }
 
         @Override
@@ -64,7 +266,46 @@ class PmSortEngine implements LayerSortIn {
 
         @Override
         public LayerPostSort sort(Comparator<String> comparator) {
-            return this.new PmSort(comparator);
+            return this.new PmSort(comparator, null);
+        }
+
+        @Override
+        public LayerPostSort sort(KeyExtractor extractor) {
+            return this.new PmSort(KeyedLine.comparatorOf(extractor), extractor);
+        }
+
+        @Override
+        public LayerPostSort sort(SortFields fields) {
+            // fixed-width normalized key: radix sort in memory
+            return this.new PmSort(fields, fields);
+        }
+
+        @Override
+        public LayerGroupBy groupBy(KeyExtractor extractor) {
+            // no order: the records are grouped in a hash table on the normalized key
+            return this.new PmSort(KeyedLine.comparatorOf(extractor), extractor, true);
+        }
+
+        @Override
+        public LayerMerge verify() {
+            this.verify = true;
+            return this;
+        }
+
+        @Override
+        public LayerPostSort merge(Comparator<String> comparator) {
+            return this.new PmSort(comparator, null);
+        }
+
+        @Override
+        public LayerPostSort merge(SortFields fields) {
+            return this.new PmSort(fields, null);
+        }
+
+        @Override
+        public LayerPostSort merge(KeyExtractor extractor) {
+            // sorted inputs: the key is computed by the comparisons, not stored
+            return this.new PmSort(KeyedLine.comparatorOf(extractor), null);
         }
 
         @Override
@@ -73,14 +314,45 @@ class PmSortEngine implements LayerSortIn {
             return this;
         }
 
-        private class PmSort implements LayerPostSort {
-            private final Comparator<String> comparator;
+        private class PmSort implements LayerPostSort, LayerGroupBy {
+            private final Comparator<String> comparator;     // records
+            private final KeyExtractor keyExtractor;         // Nullable
+            private final boolean hashGroup;                 // group by, no sort
+            private final Comparator<String> runOrder;       // records, or keyed records (split and merge)
             private RecordEditor outRecFcn = null;
+            private int limit = Integer.MAX_VALUE;  // output records
             private File target;
             private RecordAccumulator reorgWriter = null;
+            private GroupReducer combiner = null;   // Nullable, equal records reduced while split and merged
+            private SumFields sumRule = null;       // Nullable, associative sum, pre-aggregated while split
+            private final List<RecordSource> masters = new ArrayList<>();    // sorted files merged with the input
+            private List<String> memoryRun = null;      // sorted records, kept for the final merge
+            private List<Reservoir> samples = null;     // key sample (partitioned output)
+
+            public PmSort(Comparator<String> comparator, KeyExtractor keyExtractor) {
+                this(comparator, keyExtractor, false);
+            }
 
-            public PmSort(Comparator<String> comparator) {
+            public PmSort(Comparator<String> comparator, KeyExtractor keyExtractor, boolean hashGroup) {
                 this.comparator = comparator;
+                this.keyExtractor = keyExtractor;
+                this.hashGroup = hashGroup;
+                this.runOrder = keyExtractor == null ? comparator : KeyedLine.ORDER;
+            }
+
+            private String recordOf(String line) {
+                return keyExtractor == null ? line : KeyedLine.unwrap(line);
+            }
+
+            /**
+             * Reorganizes a record of the final merge
+             *
+             * @param writer reorganization
+             * @param line   record, keyed with a key extractor
+             * @return output record, or null
+             */
+            private String reorg(RecordAccumulator writer, String line) {
+                return writer instanceof RunAccumulator ? writer.reduce(line) : writer.reduce(recordOf(line));
             }
 
             @Override
@@ -89,374 +361,2174 @@ class PmSortEngine implements LayerSortIn {
                 return this;
             }
 
+            @Override
+            public LayerOutRec limit(int n) {
+                if (n < 0)
+                    throw new IllegalArgumentException("Invalid limit: " + n);
+                this.limit = n;
+                return this;
+            }
+
             @Override
             public void sortOut(File sortedFile) {
+                if (hashGroup) {
+                    groupOut(sortedFile);
+                    return;
+                }
                 this.target = sortedFile;
-                List<File> tempFiles = split();
-                if (tempFiles.size() > 1) {
-                    execMerge(tempFiles);
+                ExecutorService pool = Executors.newFixedThreadPool(maxThread);
+                try {
+                    List<RecordSource> sources = finalSources(pool);
+                    if (!sources.isEmpty()) {
+                        List<String> bounds = rangeBounds(sources);
+                        if (bounds.isEmpty()) {
+                            await(pool.submit(this.new FinalMergeTask(sources, target, reorgWriter)));
+                        } else {
+                            parallelMerge(pool, sources, bounds);
+                        }
+                    }
+                } finally {
+                    pool.shutdown();
+                }
+            }
+
+            @Override
+            public void sortOut(File... partitions) {
+                if (partitions.length == 0)
+                    throw new IllegalArgumentException("No partition file");
+                if (hashGroup) {
+                    groupOut(partitions);
+                    return;
+                }
+                this.target = null;     // the final records are split among the partitions
+                this.samples = new ArrayList<>();
+                ExecutorService pool = Executors.newFixedThreadPool(maxThread);
+                try {
+                    List<RecordSource> sources = finalSources(pool);
+                    List<String> bounds = partitionBounds(partitions.length);
+                    if (limit == Integer.MAX_VALUE && (reorgWriter == null || reorgWriter instanceof ReorgWriter) &&
+                        isIndexed(sources)) {
+                        List<Future<?>> merges = new ArrayList<>(partitions.length);
+                        for (int k = 0; k < partitions.length; k++) {
+                            // the partitions beyond the last bound are empty
+                            List<RecordSource> ranges = new ArrayList<>(sources.size());
+                            if (k <= bounds.size()) {
+                                String from = k == 0 ? null : bounds.get(k - 1);
+                                String to = k == bounds.size() ? null : bounds.get(k);
+                                for (RecordSource src : sources) {
+                                    ranges.add(src.range(runOrder, from, to));
+                                }
+                            }
+                            merges.add(pool.submit(this.new FinalMergeTask(ranges, partitions[k], newReorgWriter())));
+                        }
+                        for (Future<?> merge : merges) {
+                            await(merge);
+                        }
+                        for (RecordSource src : sources) {
+                            dispose(src);
+                        }
+                    } else {
+                        // a single accumulator, a limit or a source without block index to seek the ranges:
+                        // a single merge, each record goes to the partition of its key
+                        await(pool.submit(this.new FinalMergeTask(sources, partitions, bounds, reorgWriter)));
+                    }
+                } finally {
+                    samples = null;
+                    pool.shutdown();
                 }
             }
 
-            private void execMerge(List<File> tempFiles) {
-                ExecutorService mergerPool = Executors.newFixedThreadPool(maxThread);
+            @Override
+            public RecordIterator sortOut() {
+                if (hashGroup) {
+                    // the groups are written before the first one is provided
+                    File file = createTempFile();
+                    groupOut(file);
+                    try {
+                        return this.new FileIterator(file);
+                    } catch (IOException e) {
+                        throw new SortException(e, "Error reading the file %s", file.getAbsolutePath());
+                    }
+                }
+                this.target = null;     // the final records are provided by the iterator
+                List<RecordSource> sources;
+                ExecutorService pool = Executors.newFixedThreadPool(maxThread);
                 try {
-                    merge(mergerPool, tempFiles);
+                    sources = finalSources(pool);
                 } finally {
-                    mergerPool.shutdown();
+                    pool.shutdown();
+                }
+                try {
+                    return this.new MergeIterator(sources);
+                } catch (IOException e) {
+                    throw new SortException(e, "Error merging %s", namesOf(sources));
+                }
+            }
+
+            @Override
+            public void sortOut(OutFil... outputs) {
+                if (outputs.length == 0)
+                    throw new IllegalArgumentException("No output file");
+                // the last merge pass feeds all the outputs
+                try (RecordIterator it = sortOut();
+                     OutFilWriter out = this.new OutFilWriter(outputs)) {
+                    while (it.hasNext()) {
+                        out.write(it.next());
+                    }
+                }
+            }
+
+            /**
+             * Groups the records by key in a hash table, spilled to partition files when full
+             *
+             * @param outputs output files, the groups are spread by key hash among them
+             */
+            private void groupOut(File... outputs) {
+                try (GroupWriter out = this.new GroupWriter(outputs)) {
+                    read(this.new GroupSplitter(out));
+                }
+            }
+
+            private File createTempFile() {
+                try {
+                    File file = File.createTempFile(PREFIX, SUFFIX, swap);
+                    file.deleteOnExit();
+                    return file;
+                } catch (IOException e) {
+                    throw new SortException(e, "Error creating temporary files");
+                }
+            }
+
+            /**
+             * Chooses the key ranges of a parallel final merge, among the first records of the blocks of the sorted files;
+             * equal records always fall in the same range, so that each range can be reorganized on its own
+             *
+             * @param sources sources of the final merge
+             * @return first record of each range but the first one, empty for a single thread final merge
+             */
+            private List<String> rangeBounds(List<RecordSource> sources) {
+                // each range needs its own reorganization, the parts of the target are joined byte by byte
+                if (maxThread < 2 || !isLineAligned(charset) || limit != Integer.MAX_VALUE ||
+                    (reorgWriter != null && !(reorgWriter instanceof ReorgWriter)))
+                    return Collections.emptyList();
+                List<String> keys = new ArrayList<>();
+                for (RecordSource src : sources) {
+                    List<RunWriter.Block> blocks = src.blocks();
+                    if (blocks == null)
+                        return Collections.emptyList();     // not a temporary sorted file
+                    for (RunWriter.Block block : blocks) {
+                        keys.add(block.first);
+                    }
+                }
+                List<String> bounds = new ArrayList<>();
+                int nmRange = Math.min(maxThread, keys.size() / sources.size());
+                if (nmRange < 2)
+                    return bounds;
+                Collections.sort(keys, runOrder);
+                String last = keys.get(0);
+                for (int k = 1; k < nmRange; k++) {
+                    String bound = keys.get(k * keys.size() / nmRange);
+                    if (runOrder.compare(last, bound) < 0) {
+                        bounds.add(bound);
+                        last = bound;
+                    }
+                }
+                return bounds;
+            }
+
+            private boolean isIndexed(List<RecordSource> sources) {
+                for (RecordSource src : sources) {
+                    if (src.blocks() == null)
+                        return false;   // not a temporary sorted file, a range would read it from the start
+                }
+                return true;
+            }
+
+            /**
+             * Reduces the groups of equal records of a sorted chunk (combiner)
+             *
+             * @param data sorted records
+             * @return reduced records
+             */
+            private List<String> combine(List<String> data) {
+                if (combiner == null)
+                    return data;
+                List<String> reduced = new ArrayList<>();
+                int size = data.size();
+                for (int i = 0, j; i < size; i = j) {
+                    for (j = i + 1; j < size && runOrder.compare(data.get(i), data.get(j)) == 0; j++) {
+                        // same group
+                    }
+                    reduced.add(j - i == 1 ? data.get(i) : combiner.reduce(data.subList(i, j)));
+                }
+                return reduced;
+            }
+
+            private RecordAccumulator newReorgWriter() {
+                return reorgWriter == null ? null : ((ReorgWriter) reorgWriter).copy();
+            }
+
+            private Reservoir newSample() {
+                if (samples == null)
+                    return null;
+                Reservoir reservoir = new Reservoir();
+                synchronized (samples) {
+                    samples.add(reservoir);
+                }
+                return reservoir;
+            }
+
+            /**
+             * Samples a sorted source that is not split: a text file is sampled at evenly spaced offsets,
+             * as a sorted file these are the quantiles of its records, and it is not read in full
+             *
+             * @param source sorted source, of records without key
+             */
+            private void sample(RecordSource source) {
+                Reservoir reservoir = newSample();
+                File file = source.file();
+                if (file != null && isLineAligned(charset)) {
+                    sample(reservoir, file);
+                    return;
+                }
+                try (RecordSource.RecordReader rd = source.open(charset)) {
+                    String line;
+                    while ((line = rd.readLine()) != null) {
+                        reservoir.offer(keyExtractor == null ? line : KeyedLine.wrap(keyExtractor, line));
+                    }
+                } catch (IOException e) {
+                    throw new SortException(e, "Error reading %s", source.name());
+                }
+            }
+
+            private void sample(Reservoir reservoir, File file) {
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    long size = channel.size();
+                    long bytes = 0;
+                    long last = -1;
+                    for (int k = 0; k < SAMPLE_SIZE; k++) {
+                        long pos = size * k / SAMPLE_SIZE;
+                        long start = pos == 0 ? 0 : RangeInputStream.nextLine(channel, pos - 1);
+                        if (start >= size)
+                            break;
+                        if (start == last)
+                            continue;   // a line longer than the step
+                        long end = RangeInputStream.nextLine(channel, start);
+                        ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+                        while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) > 0) {
+                            // fill
+                        }
+                        buffer.flip();
+                        String line = charset.decode(buffer).toString();
+                        int length = line.length();
+                        if (length > 0 && line.charAt(length - 1) == '\n')
+                            length--;
+                        if (length > 0 && line.charAt(length - 1) == '\r')
+                            length--;
+                        line = line.substring(0, length);
+                        reservoir.lines.add(keyExtractor == null ? line : KeyedLine.wrap(keyExtractor, line));
+                        bytes += end - start;
+                        last = start;
+                    }
+                    // the records are estimated from the mean length of the sampled ones
+                    int nmLine = reservoir.lines.size();
+                    reservoir.count = nmLine == 0 ? 0 : Math.round((double) size * nmLine / bytes);
+                } catch (IOException e) {
+                    throw new SortException(e, "Error reading the file %s", file.getAbsolutePath());
+                }
+            }
+
+            /**
+             * Chooses the key bounds of the partitions, at the quantiles of the key sample
+             *
+             * @param nmPart number of partitions
+             * @return first record of each partition but the first one, fewer when the distinct keys are few
+             */
+            private List<String> partitionBounds(int nmPart) {
+                // each sampled record stands for count/size records of its splitter
+                List<Map.Entry<String, Double>> sample = new ArrayList<>();
+                double total = 0;
+                for (Reservoir reservoir : samples) {
+                    Double weight = (double) reservoir.count / Math.max(1, reservoir.lines.size());
+                    for (String line : reservoir.lines) {
+                        sample.add(new AbstractMap.SimpleEntry<>(line, weight));
+                    }
+                    total += reservoir.count;
+                }
+                Collections.sort(sample, new Comparator<Map.Entry<String, Double>>() {
+                    @Override
+                    public int compare(Map.Entry<String, Double> o1, Map.Entry<String, Double> o2) {
+                        return runOrder.compare(o1.getKey(), o2.getKey());
+                    }
+                });
+                List<String> bounds = new ArrayList<>(nmPart - 1);
+                String last = sample.isEmpty() ? null : sample.get(0).getKey();    // the first partition is not empty
+                double cumulated = 0;
+                int k = 1;
+                for (Map.Entry<String, Double> entry : sample) {
+                    while (k < nmPart && cumulated >= total * k / nmPart) {
+                        String bound = entry.getKey();
+                        if (runOrder.compare(last, bound) < 0) {
+                            bounds.add(bound);
+                            last = bound;
+                        }
+                        k++;
+                    }
+                    cumulated += entry.getValue();
+                }
+                return bounds;
+            }
+
+            /*
+             * each key range is merged by its own thread, the first one into the target,
+             * the following ones into temporary files that are then appended to the target
+             */
+            private void parallelMerge(ExecutorService pool, List<RecordSource> sources, List<String> bounds) {
+                List<File> parts = new ArrayList<>(bounds.size());
+                List<Future<?>> merges = new ArrayList<>(bounds.size() + 1);
+                for (int k = 0; k <= bounds.size(); k++) {
+                    String from = k == 0 ? null : bounds.get(k - 1);
+                    String to = k == bounds.size() ? null : bounds.get(k);
+                    List<RecordSource> ranges = new ArrayList<>(sources.size());
+                    for (RecordSource src : sources) {
+                        ranges.add(src.range(runOrder, from, to));
+                    }
+                    File dest = target;
+                    if (k > 0) {
+                        dest = createTempFile();
+                        parts.add(dest);
+                    }
+                    merges.add(pool.submit(this.new FinalMergeTask(ranges, dest, newReorgWriter())));
+                }
+                for (Future<?> merge : merges) {
+                    await(merge);
+                }
+                try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                    for (File part : parts) {
+                        try (FileChannel in = FileChannel.open(part.toPath(), StandardOpenOption.READ)) {
+                            long size = in.size();
+                            for (long pos = 0; pos < size; ) {
+                                pos += in.transferTo(pos, size - pos, out);
+                            }
+                        }
+                        Files.delete(part.toPath());
+                    }
+                } catch (IOException e) {
+                    throw new SortException(e, "Error writing the file %s", target.getAbsolutePath());
+                }
+                for (RecordSource src : sources) {
+                    dispose(src);
                 }
             }
 
-            private void merge(ExecutorService mergerPool, List<File> tempFiles) {
-                List<File> mergeFiles = new ArrayList<>();
-                Phaser phaser = new Phaser();
-                if (tempFiles.size() == 2) {
-                    MergeTask mergeTask = this.new FinalMergeTask(tempFiles.get(0), tempFiles.get(1), phaser);
-                    mergerPool.submit(mergeTask);
+            /**
+             * Provides the sources of the final merge: the sorted files to merge with,
+             * then the sorted files of the split, or the inputs themselves when they are already sorted
+             *
+             * @param pool thread pool
+             * @return sources of the final merge, in input order, empty if the target has already been written
+             */
+            private List<RecordSource> finalSources(ExecutorService pool) {
+                MergeScheduler scheduler = this.new MergeScheduler(pool);
+                // sort stability: the sorted files come before the input
+                for (RecordSource master : masters) {
+                    if (samples != null)
+                        sample(master);     // not split
+                    scheduler.add(keyExtractor == null ? master : RecordSource.keyed(master, keyExtractor));
+                }
+                if (presorted) {
+                    for (RecordSource input : inputs) {
+                        if (samples != null)
+                            sample(input);
+                        scheduler.add(verify ? RecordSource.ordered(input, comparator) : input);
+                    }
                 } else {
-                    Queue<File> queue = new LinkedList<>(tempFiles);
-                    while (!queue.isEmpty()) {
-                        File sx = queue.poll();
-                        File dx = queue.poll();
-                        if (dx == null) {
-                            mergeFiles.add(sx);
-                        } else {
-                            try {
-                                File cx = File.createTempFile(PREFIX, SUFFIX, swap);
-                                cx.deleteOnExit();
-                                mergeFiles.add(cx);
-                                MergeTask mergeTask = this.new MergeTask(sx, dx, cx, phaser);
-                                mergerPool.submit(mergeTask);
-                            } catch (IOException e) {
-                                throw new SortException(e, "Temporary files error");
+                    split(pool, scheduler);
+                    if (memoryRun != null) {
+                        scheduler.add(RecordSource.of(memoryRun));
+                        memoryRun = null;
+                    }
+                }
+                return scheduler.finish();
+            }
+
+            /**
+             * Splits the input into sorted files, handed to the merge scheduler in input order
+             *
+             * @param pool      thread pool
+             * @param scheduler merge scheduler
+             */
+            private void split(ExecutorService pool, MergeScheduler scheduler) {
+                if (reorgWriter == null && limit != Integer.MAX_VALUE && limit <= maxNumRecord) {
+                    // top-N: the records beyond the limit are discarded as they are read
+                    read(this.new TopSplitter(scheduler));
+                    return;
+                }
+                if (nmStop == Integer.MAX_VALUE && !replacementSelection) {
+                    // record numbering across the inputs is not needed: the inputs can be read in parallel
+                    if (inputs.size() > 1) {
+                        parallelSplit(pool, scheduler, inputs, nmSkip, false);
+                        return;
+                    }
+                    List<RecordSource> slices = parallelInput && nmSkip == 0 ? slicesOf(inputs.get(0)) : null;
+                    if (slices != null) {
+                        parallelSplit(pool, scheduler, slices, 0, true);
+                        return;
+                    }
+                }
+                read(replacementSelection ?
+                    this.new ReplacementSplitter(scheduler) :
+                    this.new ChunkSplitter(pool, scheduler));
+            }
+
+            /**
+             * Reads the inputs in order, on the calling thread, each record handed to the splitter
+             *
+             * @param splitter record splitter
+             */
+            private void read(Splitter splitter) {
+                long nmRecWr = 0;
+                for (RecordSource input : inputs) {
+                    long nmRecRd = 0;
+                    try (RecordSource.RecordReader rd = input.open(charset)) {
+                        String line;
+                        while (nmRecWr < nmStop && (line = rd.readLine()) != null) {
+                            if (line.length() == 1 && line.charAt(0) == '\u001a')
+                                break;
+                            nmRecRd++;
+                            if (nmRecRd > nmSkip &&
+                                splitter.process(line)) {
+                                nmRecWr++;
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new SortException(e, "Error reading %s", input.name());
+                    }
+                }
+                splitter.finish();
+            }
+
+            /**
+             * Divides the input file in byte ranges aligned to the lines, one for each thread
+             *
+             * @param input input source
+             * @return ranges of the file in order, or null if the input is not a file large enough to be sliced
+             */
+            private List<RecordSource> slicesOf(RecordSource input) {
+                File file = input.file();
+                if (file == null)
+                    return null;
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    long size = channel.size();
+                    int nmSlice = (int) Math.min(maxThread, size / MIN_SLICE_SIZE);
+                    if (nmSlice < 2)
+                        return null;
+                    List<RecordSource> slices = new ArrayList<>(nmSlice);
+                    long start = 0;
+                    for (int k = 1; k <= nmSlice && start < size; k++) {
+                        long end = k == nmSlice ? size : RangeInputStream.nextLine(channel, Math.max(start, size * k / nmSlice));
+                        slices.add(RecordSource.of(file, start, end));
+                        start = end;
+                    }
+                    return slices;
+                } catch (IOException e) {
+                    throw new SortException(e, "Error reading %s", input.name());
+                }
+            }
+
+            /**
+             * Splits the inputs, each one read by a pool thread
+             *
+             * @param pool       thread pool
+             * @param scheduler  merge scheduler
+             * @param parts      inputs, in order
+             * @param nmSkip     number of records to skip from the beginning of each input
+             * @param contiguous true if the inputs are ranges of the same file (an end-of-file mark ends the following ones)
+             */
+            private void parallelSplit(ExecutorService pool, final MergeScheduler scheduler, List<RecordSource> parts,
+                                       int nmSkip, final boolean contiguous) {
+                List<Future<?>> splitters = new ArrayList<>(parts.size());
+                for (RecordSource part : parts) {
+                    // input order is kept by the reserved places, sort stability: File_k < File_{k+1} !!
+                    final Slot slot = scheduler.reserve();
+                    final SourceSplitter splitter = this.new SourceSplitter(part, nmSkip);
+                    splitters.add(pool.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            splitter.run();
+                            // handed as soon as the part is split, whatever the parts before it
+                            scheduler.ready(slot, splitter.runs, contiguous && splitter.eofMark);
+                        }
+                    }));
+                }
+                for (Future<?> part : splitters) {
+                    await(part);
+                }
+            }
+
+            @Override
+            public LayerPostSort mergeWith(File sortedFile) {
+                masters.add(RecordSource.of(sortedFile));
+                return this;
+            }
+
+            @Override
+            public LayerOutRec allDups() {
+                this.reorgWriter = this.new AllDupsReorgWriter();
+                return this;
+            }
+
+            @Override
+            public LayerOutRec noDups() {
+                this.reorgWriter = this.new NoDupsReorgWriter();
+                return this;
+            }
+
+            @Override
+            public LayerOutRec first() {
+                this.reorgWriter = this.new FirstReorgWriter();
+                this.combiner = new GroupReducer() {
+                    @Override
+                    public String reduce(List<String> group) {
+                        return group.get(0);
+                    }
+                };
+                return this;
+            }
+
+            @Override
+            public LayerOutRec last() {
+                this.reorgWriter = this.new LastReorgWriter();
+                this.combiner = new GroupReducer() {
+                    @Override
+                    public String reduce(List<String> group) {
+                        return group.get(group.size() - 1);
+                    }
+                };
+                return this;
+            }
+
+            @Override
+            public LayerOutRec firstDup() {
+                this.reorgWriter = this.new FirstDupReorgWriter();
+                return this;
+            }
+
+            @Override
+            public LayerOutRec lastDup() {
+                this.reorgWriter = this.new LastDupReorgWriter();
+                return this;
+            }
+
+            @Override
+            public LayerOutRec sum(final SumFields rule) {
+                class SumFiledsRule extends SumFields implements RunAccumulator {
+                    private String cache = null;
+
+                    @Override
+                    public String reduce(String line) {
+                        String out;
+                        if (cache == null ) {
+                            out = null;
+                            cache = line;
+                            reset();
+                        } else if (runOrder.compare(cache, line) == 0) {
+                            out = null;
+                        } else {
+                            out = getSummary(recordOf(cache));
+                            reset();
+                            cache = line;
+                        }
+                        add(recordOf(line));
+                        return out;
+                    }
+
+                    @Override
+                    public String flush() {
+                        return getSummary(cache == null ? null : recordOf(cache));
+                    }
+
+                    @Override
+                    protected void reset() {
+                        rule.reset();
+                    }
+
+                    @Override
+                    protected void add(String line) {
+                        rule.add(line);
+                    }
+
+                    @Override
+                    protected String getSummary(String line) {
+                        return rule.getSummary(line);
+                    }
+                }
+                this.reorgWriter = new SumFiledsRule();
+                if (rule.isAssociative()) {
+                    this.sumRule = rule;
+                    this.combiner = new GroupReducer() {
+                        @Override
+                        public String reduce(List<String> group) {
+                            String first = group.get(0);
+                            String summary = recordOf(first);
+                            synchronized (rule) {   // a single rule for all the threads
+                                for (int k = 1; k < group.size(); k++) {
+                                    summary = rule.combine(summary, recordOf(group.get(k)));
+                                }
+                            }
+                            // the summary keeps the key of its group, not extracted again
+                            return keyExtractor == null ? summary : first.substring(0, 1 + first.charAt(0)) + summary;
+                        }
+                    };
+                }
+                return this;
+            }
+
+            @Override
+            public LayerOutRec reduce(RecordAccumulator accumulator) {
+                this.reorgWriter = accumulator;
+                return this;
+            }
+
+            /*
+             * event-driven merge: a group of adjacent sources (sort stability) is merged as soon as it is ready,
+             * the smallest group first, until no more than fanIn sources are left for the final merge;
+             * while the input is being split, only once at least twice fanIn sources are waiting
+             */
+            private class MergeScheduler {
+                private final ExecutorService pool;
+                private final List<Slot> slots = new ArrayList<>();     // input order
+                private int running = 0;
+                private boolean closed = false;
+                private Throwable failure = null;
+
+                private MergeScheduler(ExecutorService pool) {
+                    this.pool = pool;
+                }
+
+                /**
+                 * Reserves the place of a source that is not ready yet
+                 *
+                 * @return source place, in input order
+                 */
+                private synchronized Slot reserve() {
+                    Slot slot = new Slot();
+                    slots.add(slot);
+                    return slot;
+                }
+
+                private synchronized void ready(Slot slot, RecordSource source) {
+                    slot.source = source;
+                    schedule();
+                }
+
+                private void add(RecordSource source) {
+                    ready(reserve(), source);
+                }
+
+                /**
+                 * Replaces the place of a split source with its sorted files
+                 *
+                 * @param slot    reserved place
+                 * @param sources sorted files, in input order
+                 * @param eof     the source ends with the end-of-file mark: the places after it are dropped
+                 */
+                private synchronized void ready(Slot slot, List<RecordSource> sources, boolean eof) {
+                    if (slot.dropped) {
+                        for (RecordSource source : sources) {
+                            dispose(source);
+                        }
+                        return;
+                    }
+                    int at = slots.indexOf(slot);
+                    if (eof) {
+                        List<Slot> tail = slots.subList(at + 1, slots.size());
+                        for (Slot next : tail) {
+                            if (next.source != null) {
+                                dispose(next.source);
+                            } else {
+                                next.dropped = true;    // split or merged later
+                            }
+                        }
+                        tail.clear();
+                    }
+                    slots.remove(at);
+                    for (RecordSource source : sources) {
+                        Slot place = new Slot();
+                        place.source = source;
+                        slots.add(at++, place);
+                    }
+                    schedule();
+                }
+
+                /**
+                 * Waits for the merges needed by the final merge
+                 *
+                 * @return sources of the final merge, in input order
+                 */
+                private synchronized List<RecordSource> finish() {
+                    closed = true;
+                    schedule();
+                    while (failure == null && (running > 0 || slots.size() > fanIn)) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new SortException(new InterruptedIOException(e.getMessage()), "Sort interrupted");
+                        }
+                    }
+                    if (failure != null)
+                        throw propagate(failure);
+                    List<RecordSource> sources = new ArrayList<>(slots.size());
+                    for (Slot slot : slots) {
+                        sources.add(slot.source);
+                    }
+                    return sources;
+                }
+
+                private void schedule() {
+                    while (failure == null && running < maxThread) {
+                        int count = slots.size();
+                        // at the end, the first merge reduces the sources just enough (Huffman-like)
+                        int size = closed ? Math.min(fanIn, count - fanIn + 1) : (count >= 2 * fanIn ? fanIn : 0);
+                        if (size < 2)
+                            return;
+                        int best = -1;
+                        long bestBytes = Long.MAX_VALUE;
+                        for (int from = 0; from + size <= count; from++) {
+                            long bytes = 0;
+                            for (int k = from; k < from + size && bytes >= 0; k++) {
+                                RecordSource source = slots.get(k).source;
+                                bytes = source == null ? -1 : bytes + source.size();
+                            }
+                            if (bytes >= 0 && bytes < bestBytes) {
+                                best = from;
+                                bestBytes = bytes;
+                            }
+                        }
+                        if (best < 0)
+                            return;     // waits for the pending sources
+                        start(best, size);
+                    }
+                }
+
+                private void start(int from, int size) {
+                    List<Slot> group = slots.subList(from, from + size);
+                    List<RecordSource> sources = new ArrayList<>(size);
+                    for (Slot slot : group) {
+                        sources.add(slot.source);
+                    }
+                    final Slot merged = new Slot();
+                    final File cx = createTempFile();
+                    final MergeTask mergeTask = PmSort.this.new MergeTask(sources, cx);
+                    // the task waits for this lock before reporting, the places are replaced once it is submitted
+                    pool.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                mergeTask.run();
+                            } catch (RuntimeException | Error e) {
+                                failed(e);
+                                return;
+                            }
+                            merged(merged, RecordSource.ofRun(cx, compress, frontCoding, mergeTask.blocks));
+                        }
+                    });
+                    group.clear();
+                    slots.add(from, merged);
+                    running++;
+                }
+
+                private synchronized void merged(Slot slot, RecordSource source) {
+                    running--;
+                    try {
+                        if (slot.dropped) {
+                            dispose(source);    // beyond the end-of-file mark
+                        } else {
+                            slot.source = source;
+                            schedule();
+                        }
+                    } catch (RuntimeException | Error e) {
+                        // the merges already started are still counted
+                        if (failure == null)
+                            failure = e;
+                    }
+                    notifyAll();
+                }
+
+                private synchronized void failed(Throwable e) {
+                    running--;
+                    if (failure == null)
+                        failure = e;
+                    notifyAll();
+                }
+            }
+
+            /*
+             * pre-aggregation of an associative sum: the partial summaries by key, saved as a chunk when the table is full;
+             * a hash table on the normalized key, or a tree on the records without a key extractor
+             */
+            private class Aggregation {
+                private final Map<String, String> table = keyExtractor != null ?
+                    new HashMap<String, String>() : new TreeMap<String, String>(runOrder);
+                private long memory = 0;
+
+                private void add(String line) {
+                    String key = keyExtractor != null ? line.substring(0, 1 + line.charAt(0)) : line;
+                    String record = recordOf(line);
+                    String partial = table.get(key);
+                    if (partial == null) {
+                        table.put(key, record);
+                        memory += sizeOf(line) + MAP_ENTRY_SIZE;
+                    } else {
+                        String summary;
+                        synchronized (sumRule) {    // a single rule for all the threads
+                            summary = sumRule.combine(partial, record);
+                        }
+                        table.put(key, summary);
+                        memory += sizeOf(summary) - sizeOf(partial);
+                    }
+                }
+
+                private boolean isFull(long maxChunkMemory) {
+                    return table.size() >= maxNumRecord || (maxMemory > 0 && memory > maxChunkMemory);
+                }
+
+                /**
+                 * Empties the table
+                 *
+                 * @return partial summaries, sorted without a key extractor
+                 */
+                private List<String> drain() {
+                    List<String> data = new ArrayList<>(table.size());
+                    for (Map.Entry<String, String> entry : table.entrySet()) {
+                        data.add(keyExtractor != null ? entry.getKey() + entry.getValue() : entry.getValue());
+                    }
+                    table.clear();
+                    memory = 0;
+                    return data;
+                }
+            }
+
+            /*
+             * combiner of a sorted stream: equal records are reduced two at a time, as they come
+             */
+            private class CombineWriter {
+                private final RunWriter wrt;
+                private String cache = null;
+
+                private CombineWriter(RunWriter wrt) {
+                    this.wrt = wrt;
+                }
+
+                private void write(String line) throws IOException {
+                    if (combiner == null) {
+                        wrt.write(line);
+                    } else if (cache != null && runOrder.compare(cache, line) == 0) {
+                        cache = combiner.reduce(Arrays.asList(cache, line));
+                    } else {
+                        if (cache != null)
+                            wrt.write(cache);
+                        cache = line;
+                    }
+                }
+
+                private void flush() throws IOException {
+                    if (cache != null) {
+                        wrt.write(cache);
+                        cache = null;
+                    }
+                }
+            }
+
+            private class MergeTask implements Runnable {
+                private final List<RecordSource> sources;
+                protected final File dest;
+                private List<RunWriter.Block> blocks = null;
+
+                private MergeTask(List<RecordSource> sources, File dest) {
+                    this.sources = sources;
+                    this.dest = dest;
+                }
+
+                @Override
+                public void run() {
+                    performMerge();
+                    for (RecordSource src : sources) {
+                        dispose(src);
+                    }
+                }
+
+                public void performMerge() {
+                    List<RecordSource.RecordReader> readers = new ArrayList<>(sources.size());
+                    try {
+                        for (RecordSource src : sources) {
+                            readers.add(src.open(charset));
+                        }
+                        // sort stability: File_k < File_{k+1} !!
+                        write(new LoserTree(runOrder, readers));
+                    } catch (IOException e) {
+                        throw new SortException(e, "Error merging %s -> %s",
+                            namesOf(sources),
+                            dest.getAbsolutePath());
+                    } finally {
+                        for (RecordSource.RecordReader rd : readers) {
+                            try {
+                                rd.close();
+                            } catch (IOException ignored) {
+                                // read-only, nothing to lose
+                            }
+                        }
+                    }
+                }
+
+                protected void write(LoserTree tree) throws IOException {
+                    try (RunWriter wrt = new RunWriter(dest, compress, frontCoding)) {
+                        CombineWriter cw = new CombineWriter(wrt);
+                        String line;
+                        while ((line = tree.next()) != null) {
+                            cw.write(line);
+                        }
+                        cw.flush();
+                        blocks = wrt.blocks();
+                    }
+                }
+            }
+
+            private class FinalMergeTask extends MergeTask {
+                private final File[] partitions;
+                private final List<String> bounds = new ArrayList<>();  // records, first of each partition but the first
+                private final RecordAccumulator reorgWriter;    // Nullable
+                private int part = 0;
+                private long written = 0;
+
+                public FinalMergeTask(List<RecordSource> sources, File dest, RecordAccumulator reorgWriter) {
+                    this(sources, new File[]{dest}, Collections.<String>emptyList(), reorgWriter);
+                }
+
+                public FinalMergeTask(List<RecordSource> sources, File[] partitions, List<String> bounds,
+                                      RecordAccumulator reorgWriter) {
+                    super(sources, partitions[0]);
+                    this.partitions = partitions;
+                    for (String bound : bounds) {
+                        this.bounds.add(recordOf(bound));
+                    }
+                    this.reorgWriter = reorgWriter;
+                }
+
+                @Override
+                protected void write(LoserTree tree) throws IOException {
+                    BufferedWriter[] writers = new BufferedWriter[partitions.length];
+                    try {
+                        for (int k = 0; k < partitions.length; k++) {
+                            writers[k] = Files.newBufferedWriter(partitions[k].toPath(), charset);
+                        }
+                        String line;
+                        while (written < limit && (line = tree.next()) != null) {
+                            writeLn(writers, line);
+                        }
+                        if (written < limit)
+                            flush(writers);
+                        for (BufferedWriter wrt : writers) {
+                            wrt.close();
+                        }
+                    } finally {
+                        for (BufferedWriter wrt : writers) {
+                            if (wrt != null) {
+                                try {
+                                    wrt.close();
+                                } catch (IOException ignored) {
+                                    // already failed
+                                }
+                            }
+                        }
+                    }
+                }
+
+                private void writeLn(BufferedWriter[] writers, String line) throws IOException {
+                    String stuff = reorgWriter == null ? recordOf(line) : reorg(reorgWriter, line);
+                    if (stuff != null)
+                        writeOut(writers, stuff);
+                }
+
+                private void flush(BufferedWriter[] writers) throws IOException {
+                    if (reorgWriter != null) {
+                        String stuff = reorgWriter.flush();
+                        if (stuff != null)
+                            writeOut(writers, stuff);
+                    }
+                }
+
+                private void writeOut(BufferedWriter[] writers, String stuff) throws IOException {
+                    // the records come in key order, a reduced record keeps its key
+                    while (part < bounds.size() && comparator.compare(stuff, bounds.get(part)) >= 0) {
+                        part++;
+                    }
+                    if (outRecFcn != null)
+                        stuff = outRecFcn.apply(stuff);
+                    writers[part].write(stuff);
+                    writers[part].newLine();
+                    written++;
+                }
+            }
+
+            /*
+             * last merge pass, driven by the consumer: the records are reorganized and edited as the final merge does
+             */
+            private class MergeIterator implements RecordIterator {
+                private final List<RecordSource> sources;
+                private final List<RecordSource.RecordReader> readers = new ArrayList<>();
+                private final LoserTree tree;
+                private String pending = null;
+                private long provided = 0;
+                private boolean started = false;
+                private boolean ended = false;
+                private boolean closed = false;
+
+                private MergeIterator(List<RecordSource> sources) throws IOException {
+                    this.sources = sources;
+                    try {
+                        for (RecordSource src : sources) {
+                            readers.add(src.open(charset));
+                        }
+                        // sort stability: File_k < File_{k+1} !!
+                        this.tree = new LoserTree(runOrder, readers);
+                    } catch (IOException e) {
+                        close();
+                        throw e;
+                    }
+                }
+
+                private String advance() throws IOException {
+                    String line;
+                    while ((line = tree.next()) != null) {
+                        started = true;
+                        String stuff = reorgWriter == null ? recordOf(line) : reorg(reorgWriter, line);
+                        if (stuff != null)
+                            return outRecFcn == null ? stuff : outRecFcn.apply(stuff);
+                    }
+                    if (started && reorgWriter != null) {
+                        started = false;    // flush once
+                        String stuff = reorgWriter.flush();
+                        if (stuff != null)
+                            return outRecFcn == null ? stuff : outRecFcn.apply(stuff);
+                    }
+                    return null;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    if (pending == null && !ended) {
+                        if (closed)
+                            throw new IllegalStateException("Iterator closed");
+                        try {
+                            pending = provided < limit ? advance() : null;
+                        } catch (IOException e) {
+                            close();
+                            throw new SortException(e, "Error merging %s", namesOf(sources));
+                        }
+                        if (pending != null)
+                            provided++;
+                        if (pending == null) {
+                            ended = true;
+                            close();
+                        }
+                    }
+                    return pending != null;
+                }
+
+                @Override
+                public String next() {
+                    if (!hasNext())
+                        throw new NoSuchElementException();
+                    String line = pending;
+                    pending = null;
+                    return line;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException("remove");
+                }
+
+                @Override
+                public void close() {
+                    if (closed)
+                        return;
+                    closed = true;
+                    for (RecordSource.RecordReader rd : readers) {
+                        try {
+                            rd.close();
+                        } catch (IOException ignored) {
+                            // read-only, nothing to lose
+                        }
+                    }
+                    for (RecordSource src : sources) {
+                        dispose(src);
+                    }
+                }
+            }
+
+            /*
+             * records of a temporary file, deleted when the iterator is closed
+             */
+            private class FileIterator implements RecordIterator {
+                private final File file;
+                private final BufferedReader rd;
+                private String pending = null;
+                private boolean ended = false;
+                private boolean closed = false;
+
+                private FileIterator(File file) throws IOException {
+                    this.file = file;
+                    this.rd = Files.newBufferedReader(file.toPath(), charset);
+                }
+
+                @Override
+                public boolean hasNext() {
+                    if (pending == null && !ended) {
+                        if (closed)
+                            throw new IllegalStateException("Iterator closed");
+                        try {
+                            pending = rd.readLine();
+                        } catch (IOException e) {
+                            close();
+                            throw new SortException(e, "Error reading the file %s", file.getAbsolutePath());
+                        }
+                        if (pending == null) {
+                            ended = true;
+                            close();
+                        }
+                    }
+                    return pending != null;
+                }
+
+                @Override
+                public String next() {
+                    if (!hasNext())
+                        throw new NoSuchElementException();
+                    String line = pending;
+                    pending = null;
+                    return line;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException("remove");
+                }
+
+                @Override
+                public void close() {
+                    if (closed)
+                        return;
+                    closed = true;
+                    try {
+                        rd.close();
+                    } catch (IOException ignored) {
+                        // read-only, nothing to lose
+                    }
+                    try {
+                        Files.deleteIfExists(file.toPath());
+                    } catch (IOException e) {
+                        throw new SortException(e, "Error deleting temporary file %s", file.getAbsolutePath());
+                    }
+                }
+            }
+
+            private abstract class Splitter {
+                private final Reservoir sample = newSample();   // Nullable
+
+                public boolean process(String line) {
+                    if (includeFilter == null || includeFilter.test(line)) {
+                        if (inRecFcn != null)
+                            line = inRecFcn.apply(line);
+                        if (keyExtractor != null)
+                            line = KeyedLine.wrap(keyExtractor, line);
+                        if (sample != null)
+                            sample.offer(line);
+                        accept(line);
+                        return true;
+                    } else {
+                        return false;
+                    }
+                }
+
+                protected abstract void accept(String line);
+
+                /**
+                 * Completes the split: the sorted files are handed to the merge scheduler, in input order,
+                 * or the records are written to the target when they fit in a single chunk
+                 */
+                public abstract void finish();
+
+                protected void save(List<String> data, File file) {
+                    try (BufferedWriter bw = Files.newBufferedWriter(file.toPath(), charset)) {
+                        for (String datum : data) {
+                            bw.write(datum);
+                            bw.newLine();
+                        }
+                    } catch (IOException e) {
+                        throw new SortException(e, "Error writing the file %s", file.getAbsolutePath());
+                    }
+                }
+
+                protected void sortChunk(List<String> data) {
+                    if (isSorted(data))
+                        return;     // stops at the first inversion on random data
+                    if (keyExtractor != null) {
+                        RadixSort.sort(data);
+                    } else {
+                        Collections.sort(data, runOrder);
+                    }
+                }
+
+                private boolean isSorted(List<String> data) {
+                    String last = null;
+                    for (String line : data) {
+                        if (last != null && runOrder.compare(last, line) > 0)
+                            return false;
+                        last = line;
+                    }
+                    return true;
+                }
+
+                protected RecordSource sortAndSave(List<String> data) {
+                    sortChunk(data);
+                    data = combine(data);
+                    File file = createTempFile();
+                    List<RunWriter.Block> blocks;
+                    try (RunWriter wrt = new RunWriter(file, compress, frontCoding)) {
+                        for (String datum : data) {
+                            wrt.write(datum);
+                        }
+                        blocks = wrt.blocks();
+                    } catch (IOException e) {
+                        throw new SortException(e, "Error writing the file %s", file.getAbsolutePath());
+                    }
+                    return RecordSource.ofRun(file, compress, frontCoding, blocks);
+                }
+
+                protected void sortAndFinalSave(List<String> data, File file) {
+                    sortChunk(data);
+                    if (file == null || !masters.isEmpty()) {
+                        // the records are a source of the final merge
+                        memoryRun = data;
+                        return;
+                    }
+                    if (reorgWriter != null) {
+                        data = reorg(data);
+                    } else if (keyExtractor != null) {
+                        List<String> lines = new ArrayList<>(data.size());
+                        for (String line : data) {
+                            lines.add(KeyedLine.unwrap(line));
+                        }
+                        data = lines;
+                    }
+                    if (data.size() > limit)
+                        data = data.subList(0, limit);
+                    if (outRecFcn != null) {
+                        List<String> good = new ArrayList<>();
+                        for(String line: data) {
+                            good.add(outRecFcn.apply(line));
+                        }
+                        data = good;
+                    }
+                    save(data, file);
+                }
+
+                private List<String> reorg(List<String> data) {
+                    List<String> roll = new ArrayList<>();
+                    for(String line: data) {
+                        String temp = PmSort.this.reorg(reorgWriter, line);
+                        if (temp != null)
+                            roll.add(temp);
+                    }
+                    String temp = reorgWriter.flush();
+                    if (temp != null)
+                        roll.add(temp);
+                    return roll;
+                }
+            }
+
+            private class ChunkSplitter extends Splitter {
+                private final ExecutorService pool;
+                private final MergeScheduler scheduler;
+                private final Semaphore inFlight = new Semaphore(maxThread);  // chunks being sorted
+                private final LinkedList<Future<?>> sorting = new LinkedList<>();
+                // memory budget of a single chunk: the reader one plus the pending ones share maxMemory
+                private final long maxChunkMemory = maxMemory / (maxThread + 1);
+                private List<String> data = newChunk();
+                private long dataMemory = 0;
+                private boolean dataSorted = true;
+                // natural run: sorted chunks that follow one another, written without sorting
+                private RunWriter naturalWriter = null;
+                private File naturalFile = null;
+                private CombineWriter naturalCombine = null;
+                private Slot naturalSlot = null;
+                private String naturalLast = null;
+                // sorted input: the first natural run is written straight to the target, until a record comes below it
+                private boolean direct;
+                private BufferedWriter directWriter = null;
+                private boolean spilled = false;
+                private final Aggregation aggregation = sumRule == null ? null : new Aggregation();
+
+                private ChunkSplitter(ExecutorService pool, MergeScheduler scheduler) {
+                    this.pool = pool;
+                    this.scheduler = scheduler;
+                    this.direct = isDirect();
+                }
+
+                /*
+                 * the target holds the records as they are, and it is not an input being read
+                 */
+                private boolean isDirect() {
+                    if (target == null || !masters.isEmpty() || reorgWriter != null || outRecFcn != null ||
+                        limit != Integer.MAX_VALUE)
+                        return false;
+                    for (RecordSource input : inputs) {
+                        File file = input.file();
+                        if (file != null && file.getAbsoluteFile().equals(target.getAbsoluteFile()))
+                            return false;
+                    }
+                    return true;
+                }
+
+                private List<String> newChunk() {
+                    return maxMemory > 0 ? new ArrayList<String>() : new ArrayList<String>(maxNumRecord);
+                }
+
+                @Override
+                protected void accept(String line) {
+                    if (aggregation != null) {
+                        aggregation.add(line);
+                        if (aggregation.isFull(maxChunkMemory))
+                            drainAggregation().spill();
+                        return;
+                    }
+                    long size = sizeOf(line);
+                    if (data.size() >= maxNumRecord ||
+                        (maxMemory > 0 && !data.isEmpty() && dataMemory + size > maxChunkMemory)) {
+                        spill();
+                    }
+                    if (dataSorted && !data.isEmpty())
+                        dataSorted = runOrder.compare(data.get(data.size() - 1), line) <= 0;
+                    data.add(line);
+                    dataMemory += size;
+                }
+
+                /*
+                 * the full chunk is sorted and saved by a pool thread, while this thread fills a new one;
+                 * blocks when maxThread chunks are already pending, to keep the memory bounded
+                 */
+                private void spill() {
+                    final List<String> chunk = data;
+                    final boolean sorted = dataSorted;
+                    data = newChunk();
+                    dataMemory = 0;
+                    dataSorted = true;
+                    spilled = true;
+                    if (sorted) {
+                        appendNatural(chunk);
+                        return;
+                    }
+                    closeNatural();
+                    inFlight.acquireUninterruptibly();
+                    checkSorted();
+                    final Slot slot = scheduler.reserve();  // input order
+                    try {
+                        sorting.add(pool.submit(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    scheduler.ready(slot, sortAndSave(chunk));
+                                } finally {
+                                    inFlight.release();
+                                }
+                            }
+                        }));
+                    } catch (RejectedExecutionException e) {
+                        inFlight.release();
+                        throw e;
+                    }
+                }
+
+                /*
+                 * the chunks already sorted are checked while splitting, a failed one stops the sort at once
+                 */
+                private void checkSorted() {
+                    Iterator<Future<?>> it = sorting.iterator();
+                    while (it.hasNext()) {
+                        Future<?> chunk = it.next();
+                        if (chunk.isDone()) {
+                            it.remove();
+                            await(chunk);
+                        }
+                    }
+                }
+
+                /*
+                 * a sorted chunk is appended to the natural run when it does not start below its last record,
+                 * a fully sorted input is a single run and needs no merge
+                 */
+                private void appendNatural(List<String> chunk) {
+                    if (naturalLast != null && runOrder.compare(naturalLast, chunk.get(0)) > 0)
+                        closeNatural();
+                    if (direct) {
+                        appendDirect(chunk);
+                        return;
+                    }
+                    try {
+                        if (naturalWriter == null) {
+                            naturalFile = createTempFile();
+                            naturalSlot = scheduler.reserve();  // input order
+                            naturalWriter = new RunWriter(naturalFile, compress, frontCoding);
+                            naturalCombine = new CombineWriter(naturalWriter);
+                        }
+                        for (String line : chunk) {
+                            naturalCombine.write(line);
+                        }
+                    } catch (IOException e) {
+                        throw new SortException(e, "Error writing the file %s", naturalFile.getAbsolutePath());
+                    }
+                    naturalLast = chunk.get(chunk.size() - 1);
+                }
+
+                private void appendDirect(List<String> chunk) {
+                    try {
+                        if (directWriter == null)
+                            directWriter = Files.newBufferedWriter(target.toPath(), charset);
+                        for (String line : chunk) {
+                            directWriter.write(recordOf(line));
+                            directWriter.newLine();
+                        }
+                    } catch (IOException e) {
+                        throw new SortException(e, "Error writing the file %s", target.getAbsolutePath());
+                    }
+                    naturalLast = chunk.get(chunk.size() - 1);
+                }
+
+                private void closeDirect() throws IOException {
+                    BufferedWriter bw = directWriter;
+                    directWriter = null;
+                    if (bw != null)
+                        bw.close();
+                }
+
+                private void closeNatural() {
+                    if (direct) {
+                        // a record below the first run: what the target holds so far is the first run to merge
+                        direct = false;
+                        if (directWriter != null) {
+                            File file = null;
+                            try {
+                                closeDirect();
+                                file = createTempFile();
+                                Files.move(target.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                            } catch (IOException e) {
+                                throw new SortException(e, "Error writing the file %s", target.getAbsolutePath());
+                            }
+                            RecordSource run = RecordSource.ofTemp(file);
+                            scheduler.ready(scheduler.reserve(),    // the first one
+                                keyExtractor == null ? run : RecordSource.keyed(run, keyExtractor));
+                            naturalLast = null;
+                        }
+                        return;
+                    }
+                    if (naturalWriter != null) {
+                        try {
+                            naturalCombine.flush();
+                            naturalWriter.close();
+                        } catch (IOException e) {
+                            throw new SortException(e, "Error writing the file %s", naturalFile.getAbsolutePath());
+                        }
+                        scheduler.ready(naturalSlot,
+                            RecordSource.ofRun(naturalFile, compress, frontCoding, naturalWriter.blocks()));
+                        naturalWriter = null;
+                        naturalCombine = null;
+                        naturalLast = null;
+                    }
+                }
+
+                private ChunkSplitter drainAggregation() {
+                    data = aggregation.drain();
+                    dataSorted = keyExtractor == null;
+                    return this;
+                }
+
+                @Override
+                public void finish() {
+                    if (aggregation != null)
+                        drainAggregation();
+                    if (!data.isEmpty()) {
+                        // some pending data
+                        if (!spilled) {
+                            // no file for now -> all in one file (the final one)
+                            sortAndFinalSave(data, target);
+                            return;
+                        } else {
+                            // add remainder
+                            spill();
+                        }
+                    }
+                    if (direct) {
+                        // a sorted input: the target is written
+                        try {
+                            closeDirect();
+                        } catch (IOException e) {
+                            throw new SortException(e, "Error writing the file %s", target.getAbsolutePath());
+                        }
+                        return;
+                    }
+                    closeNatural();
+                    // chunk order is kept by the scheduler places, sort stability: File_k < File_{k+1} !!
+                    for (Future<?> chunk : sorting) {
+                        await(chunk);
+                    }
+                }
+            }
+
+            /*
+             * an input, or a byte range of the input file: read, split and sorted by a single pool thread;
+             * the chunks are sorted by this thread, so the pool holds at most maxThread chunks
+             */
+            private class SourceSplitter extends Splitter implements Runnable {
+                private final RecordSource source;
+                private final int nmSkip;
+                private final List<RecordSource> runs = new ArrayList<>();
+                private final long maxChunkMemory = maxMemory / (maxThread + 1);
+                private List<String> data = new ArrayList<>();
+                private long dataMemory = 0;
+                private boolean eofMark = false;
+                private final Aggregation aggregation = sumRule == null ? null : new Aggregation();
+
+                private SourceSplitter(RecordSource source, int nmSkip) {
+                    this.source = source;
+                    this.nmSkip = nmSkip;
+                }
+
+                @Override
+                public void run() {
+                    long nmRecRd = 0;
+                    try (RecordSource.RecordReader rd = source.open(charset)) {
+                        String line;
+                        while ((line = rd.readLine()) != null) {
+                            if (line.length() == 1 && line.charAt(0) == '\u001a') {
+                                eofMark = true;
+                                break;
                             }
+                            if (++nmRecRd > nmSkip)
+                                process(line);
                         }
+                    } catch (IOException e) {
+                        throw new SortException(e, "Error reading %s", source.name());
                     }
+                    finish();
                 }
-                phaser.awaitAdvance(0);
-                if (!mergeFiles.isEmpty()) {
-                    merge(mergerPool, mergeFiles);
-                }
-            }
 
-            private List<File> split() {
-                long nmRecRd = 0;
-                long nmRecWr = 0;
-                Splitter splitter = this.new Splitter();
-                try (BufferedReader br = Files.newBufferedReader(source.toPath(), charset)) {
-                    String line;
-                    while (nmRecWr < nmStop && (line = br.readLine()) != null) {
-                        if (line.length() == 1 && line.charAt(0) == '\u001a')
-                            break;
-                        nmRecRd++;
-                        if (nmRecRd > nmSkip &&
-                            splitter.process(line)) {
-                            nmRecWr++;
-                        }
+                @Override
+                protected void accept(String line) {
+                    if (aggregation != null) {
+                        aggregation.add(line);
+                        if (aggregation.isFull(maxChunkMemory))
+                            runs.add(sortAndSave(aggregation.drain()));
+                        return;
                     }
-                    return splitter.files();
-                } catch (IOException e) {
-                    throw new SortException(e, "Error reading the file %s", source.getAbsolutePath());
+                    long size = sizeOf(line);
+                    if (data.size() >= maxNumRecord ||
+                        (maxMemory > 0 && !data.isEmpty() && dataMemory + size > maxChunkMemory)) {
+                        runs.add(sortAndSave(data));
+                        data = new ArrayList<>();
+                        dataMemory = 0;
+                    }
+                    data.add(line);
+                    dataMemory += size;
                 }
-            }
 
-            @Override
-            public LayerOutRec allDups() {
-                this.reorgWriter = this.new AllDupsReorgWriter();
-                return this;
+                @Override
+                public void finish() {
+                    // the files are handed to the scheduler in input order, once every input is split
+                    if (aggregation != null)
+                        data = aggregation.drain();
+                    if (!data.isEmpty())
+                        runs.add(sortAndSave(data));
+                    data = null;
+                }
             }
 
-            @Override
-            public LayerOutRec noDups() {
-                this.reorgWriter = this.new NoDupsReorgWriter();
-                return this;
-            }
+            /*
+             * replacement selection: a record smaller than the last one written is held for the next run,
+             * runs are about twice the heap size on random input, a single run on sorted input
+             */
+            private class ReplacementSplitter extends Splitter {
+                private final MergeScheduler scheduler;
+                private final PriorityQueue<HeapEntry> heap;
+                private long heapMemory = 0;
+                private long seq = 0;
+                private int run = 0;
+                private File runFile = null;
+                private RunWriter runWriter = null;
+                private CombineWriter runCombine = null;
+                private String lastLine = null;
 
-            @Override
-            public LayerOutRec first() {
-                this.reorgWriter = this.new FirstReorgWriter();
-                return this;
-            }
+                private ReplacementSplitter(MergeScheduler scheduler) {
+                    this.scheduler = scheduler;
+                    this.heap = new PriorityQueue<>(maxMemory > 0 ? 11 : maxNumRecord, new Comparator<HeapEntry>() {
+                        @Override
+                        public int compare(HeapEntry o1, HeapEntry o2) {
+                            if (o1.run != o2.run)
+                                return o1.run < o2.run ? -1 : 1;
+                            int comp = runOrder.compare(o1.line, o2.line);
+                            if (comp != 0)
+                                return comp;
+                            return o1.seq < o2.seq ? -1 : 1;    // sort stability
+                        }
+                    });
+                }
 
-            @Override
-            public LayerOutRec last() {
-                this.reorgWriter = this.new LastReorgWriter();
-                return this;
-            }
+                @Override
+                protected void accept(String line) {
+                    long size = sizeOf(line) + HEAP_ENTRY_SIZE;
+                    if (!heap.isEmpty() &&
+                        (heap.size() >= maxNumRecord || (maxMemory > 0 && heapMemory + size > maxMemory))) {
+                        // heap full: write the smallest record before making room
+                        do {
+                            writeMin();
+                        } while (maxMemory > 0 && !heap.isEmpty() && heapMemory + size > maxMemory);
+                    }
+                    // a record smaller than the last written one must wait for the next run
+                    int lineRun = lastLine != null && runOrder.compare(line, lastLine) < 0 ? run + 1 : run;
+                    heap.add(new HeapEntry(lineRun, seq++, line));
+                    heapMemory += size;
+                }
 
-            @Override
-            public LayerOutRec firstDup() {
-                this.reorgWriter = this.new FirstDupReorgWriter();
-                return this;
-            }
+                private void writeMin() {
+                    HeapEntry min = heap.poll();
+                    heapMemory -= sizeOf(min.line) + HEAP_ENTRY_SIZE;
+                    try {
+                        if (runWriter == null || min.run != run) {
+                            closeRun();
+                            run = min.run;
+                            runFile = createTempFile();
+                            runWriter = new RunWriter(runFile, compress, frontCoding);
+                            runCombine = new CombineWriter(runWriter);
+                        }
+                        runCombine.write(min.line);
+                    } catch (IOException e) {
+                        throw new SortException(e, "Error writing the file %s", runFile.getAbsolutePath());
+                    }
+                    lastLine = min.line;
+                }
 
-            @Override
-            public LayerOutRec lastDup() {
-                this.reorgWriter = this.new LastDupReorgWriter();
-                return this;
+                private void closeRun() throws IOException {
+                    if (runWriter != null) {
+                        runCombine.flush();
+                        runWriter.close();
+                        // sort stability: a record is never in a run before the one of a previous equal record
+                        scheduler.add(RecordSource.ofRun(runFile, compress, frontCoding, runWriter.blocks()));
+                        runWriter = null;
+                        runCombine = null;
+                    }
+                }
+
+                @Override
+                public void finish() {
+                    if (runFile == null) {
+                        // nothing written -> all in one file (the final one)
+                        List<String> data = new ArrayList<>(heap.size());
+                        while (!heap.isEmpty()) {
+                            // heap order: sorted, equal records in input order
+                            data.add(heap.poll().line);
+                        }
+                        if (!data.isEmpty()) {
+                            sortAndFinalSave(data, target);
+                        }
+                        return;
+                    }
+                    while (!heap.isEmpty()) {
+                        writeMin();
+                    }
+                    try {
+                        closeRun();
+                    } catch (IOException e) {
+                        throw new SortException(e, "Error writing the file %s", runFile.getAbsolutePath());
+                    }
+                }
             }
 
-            @Override
-            public LayerOutRec sum(final SumFields rule) {
-                class SumFiledsRule extends SumFields implements RecordAccumulator {
-                    private String cache = null;
+            /*
+             * top-N: the first limit records in sort order are kept in a heap whose root is the largest one,
+             * a record that does not come before the root is discarded; the heap is saved as a sorted file
+             * only when it exceeds the memory limit, and once limit records have been saved the next heaps
+             * only take the records below the smallest root that bounds them
+             */
+            private class TopSplitter extends Splitter {
+                private final MergeScheduler scheduler;
+                private final PriorityQueue<HeapEntry> heap;
+                private long heapMemory = 0;
+                private long seq = 0;
+                private boolean spilled = false;
+                // largest record of each heap saved, with the records up to it
+                private final TreeMap<String, Long> roots = new TreeMap<>(runOrder);
+                private String cutoff = null;   // limit records saved come before it, or it is one of them
 
-                    @Override
-                    public String reduce(String line) {
-                        String out;
-                        if (cache == null ) {
-                            out = null;
-                            cache = line;
-                            reset();
-                        } else if (comparator.compare(cache, line) == 0) {
-                            out = null;
-                        } else {
-                            out = getSummary(cache);
-                            reset();
-                            cache = line;
+                private TopSplitter(MergeScheduler scheduler) {
+                    this.scheduler = scheduler;
+                    this.heap = new PriorityQueue<>(maxMemory > 0 ? 11 : Math.max(1, limit), new Comparator<HeapEntry>() {
+                        @Override
+                        public int compare(HeapEntry o1, HeapEntry o2) {
+                            int comp = runOrder.compare(o2.line, o1.line);
+                            if (comp != 0)
+                                return comp;
+                            return o1.seq < o2.seq ? 1 : -1;    // sort stability: the later record is larger
                         }
-                        add(line);
-                        return out;
-                    }
+                    });
+                }
 
-                    @Override
-                    public String flush() {
-                        return getSummary(cache);
+                @Override
+                protected void accept(String line) {
+                    // limit records already come before the cutoff, an equal one comes after them
+                    if (cutoff != null && runOrder.compare(line, cutoff) >= 0)
+                        return;
+                    if (heap.size() >= limit) {
+                        if (limit == 0 || runOrder.compare(line, heap.peek().line) >= 0)
+                            return;
+                        HeapEntry max = heap.poll();
+                        heapMemory -= sizeOf(max.line) + HEAP_ENTRY_SIZE;
+                    }
+                    heap.add(new HeapEntry(0, seq++, line));
+                    heapMemory += sizeOf(line) + HEAP_ENTRY_SIZE;
+                    if (maxMemory > 0 && heapMemory > maxMemory) {
+                        saved(heap.peek().line, heap.size());
+                        scheduler.add(sortAndSave(drain()));
+                        spilled = true;
                     }
+                }
 
-                    @Override
-                    protected void reset() {
-                        rule.reset();
+                /*
+                 * the cutoff is the smallest root with limit records saved up to it
+                 */
+                private void saved(String root, long count) {
+                    Long before = roots.get(root);
+                    roots.put(root, before == null ? count : before + count);
+                    long total = 0;
+                    for (Map.Entry<String, Long> entry : roots.entrySet()) {
+                        total += entry.getValue();
+                        if (total >= limit) {
+                            cutoff = entry.getKey();
+                            roots.tailMap(cutoff, false).clear();
+                            return;
+                        }
                     }
+                }
 
-                    @Override
-                    protected void add(String line) {
-                        rule.add(line);
+                /**
+                 * Empties the heap
+                 *
+                 * @return records in sort order, equal records in input order
+                 */
+                private List<String> drain() {
+                    List<HeapEntry> entries = new ArrayList<>(heap);
+                    Collections.sort(entries, Collections.reverseOrder(heap.comparator()));
+                    List<String> data = new ArrayList<>(entries.size());
+                    for (HeapEntry entry : entries) {
+                        data.add(entry.line);
                     }
+                    heap.clear();
+                    heapMemory = 0;
+                    return data;
+                }
 
-                    @Override
-                    protected String getSummary(String line) {
-                        return rule.getSummary(line);
+                @Override
+                public void finish() {
+                    List<String> data = drain();
+                    if (data.isEmpty())
+                        return;
+                    if (spilled) {
+                        scheduler.add(sortAndSave(data));
+                    } else {
+                        // nothing written -> all in one file (the final one)
+                        sortAndFinalSave(data, target);
                     }
                 }
-                this.reorgWriter = new SumFiledsRule();
-                return this;
             }
 
-            @Override
-            public LayerOutRec reduce(RecordAccumulator accumulator) {
-                this.reorgWriter = accumulator;
-                return this;
-            }
+            /*
+             * group by: the keyed records are grouped in a hash table, the groups are reorganized when the input is over
+             */
+            private class GroupSplitter extends Splitter {
+                private final GroupWriter out;
+                private final HashGroup group = this.new HashGroup(0);
+                private String groupKey = null;     // the group given last to the accumulator
 
-            private class MergeTask implements Runnable {
-                private final File src1;
-                private final File src2;
-                private final File dest;
-                private final Phaser phaser;
-
-                private MergeTask(File src1, File src2, File dest, Phaser phaser) {
-                    this.src1 = src1;
-                    this.src2 = src2;
-                    this.dest = dest;
-                    this.phaser = phaser;
+                private GroupSplitter(GroupWriter out) {
+                    this.out = out;
+                }
 
-                    this.phaser.register();
+                @Override
+                protected void accept(String line) {
+                    group.add(line);
                 }
 
                 @Override
-                public void run() {
-                    try {
-                        performMerge();
-                        try {
-                            Files.delete(src1.toPath());
-                        } catch (IOException e) {
-                            throw new SortException(e, "Error deleting temporary file %s", src1.getAbsolutePath());
+                public void finish() {
+                    group.finish();
+                    if (groupKey != null) {
+                        String stuff = reorgWriter.flush();
+                        if (stuff != null)
+                            out.write(groupKey, stuff);
+                    }
+                }
+
+                /*
+                 * the record of a group is returned when the first record of the next group is given
+                 */
+                private void reduce(String key, List<String> records) {
+                    String previous = groupKey == null ? key : groupKey;
+                    groupKey = key;
+                    for (String record : records) {
+                        String stuff = reorg(reorgWriter, key + record);
+                        if (stuff != null)
+                            out.write(previous, stuff);
+                        previous = key;
+                    }
+                }
+
+                /*
+                 * grace hash: the groups are kept in order of first appearance until the table is full,
+                 * then all the records are spread by key hash among fanIn partition files, grouped one at a time
+                 * with a hash of a different salt; beyond MAX_DEPTH levels a partition is grouped in memory anyway
+                 */
+                private class HashGroup {
+                    private final int depth;
+                    private final Map<String, List<String>> table = new LinkedHashMap<>();
+                    private long memory = 0;
+                    private long count = 0;
+                    private File[] files = null;        // partitions, once the table has been full
+                    private RunWriter[] parts = null;
+
+                    private HashGroup(int depth) {
+                        this.depth = depth;
+                    }
+
+                    private void add(String line) {
+                        if (parts != null) {
+                            spill(line);
+                            return;
+                        }
+                        String key = line.substring(0, 1 + line.charAt(0));
+                        String record = KeyedLine.unwrap(line);
+                        List<String> records = table.get(key);
+                        if (records == null) {
+                            records = new ArrayList<>(1);
+                            table.put(key, records);
+                            memory += sizeOf(key) + MAP_ENTRY_SIZE;
+                        }
+                        if (sumRule != null && !records.isEmpty()) {
+                            // associative sum: a partial summary for each key
+                            String partial = records.get(0);
+                            String summary = sumRule.combine(partial, record);
+                            records.set(0, summary);
+                            memory += sizeOf(summary) - sizeOf(partial);
+                        } else {
+                            records.add(record);
+                            memory += sizeOf(record);
+                            count++;
+                        }
+                        if (depth < MAX_DEPTH && (count >= maxNumRecord || (maxMemory > 0 && memory > maxMemory)))
+                            partition();
+                    }
+
+                    private void partition() {
+                        files = new File[fanIn];
+                        parts = new RunWriter[fanIn];
+                        for (int k = 0; k < fanIn; k++) {
+                            files[k] = createTempFile();
+                            try {
+                                parts[k] = new RunWriter(files[k], compress, frontCoding);
+                            } catch (IOException e) {
+                                throw new SortException(e, "Error writing the file %s", files[k].getAbsolutePath());
+                            }
+                        }
+                        for (Map.Entry<String, List<String>> entry : table.entrySet()) {
+                            for (String record : entry.getValue()) {
+                                spill(entry.getKey() + record);
+                            }
                         }
+                        table.clear();
+                        memory = 0;
+                        count = 0;
+                    }
+
+                    private void spill(String line) {
+                        int k = partOf(line.substring(0, 1 + line.charAt(0)));
                         try {
-                            Files.delete(src2.toPath());
+                            parts[k].write(line);
                         } catch (IOException e) {
-                            throw new SortException(e, "Error deleting temporary file %s", src2.getAbsolutePath());
+                            throw new SortException(e, "Error writing the file %s", files[k].getAbsolutePath());
                         }
-                    } finally {
-                        phaser.arriveAndDeregister();
                     }
-                }
 
-                public void performMerge() {
-                    try (
-                        BufferedReader br1 = Files.newBufferedReader(src1.toPath(), charset);
-                        BufferedReader br2 = Files.newBufferedReader(src2.toPath(), charset);
-                        BufferedWriter wrt = Files.newBufferedWriter(dest.toPath(), charset)
-                    ) {
-                        String line1 = br1.readLine();
-                        String line2 = br2.readLine();
-                        while (line1 != null || line2 != null) {
-                            if (line1 == null) {
-                                // end-of-file 1
-                                writeLn(wrt, line2);
-                                line2 = br2.readLine();
-                            } else if (line2 == null) {
-                                // end-of-file 2
-                                writeLn(wrt, line1);
-                                line1 = br1.readLine();
-                            } else {
-                                int comp = comparator.compare(line1, line2);
-                                if (comp <= 0) {    // sort stability: File_k < File_{k+1} !!
-                                    writeLn(wrt, line1);
-                                    line1 = br1.readLine();
-                                } else /* comp > 0 */ {
-                                    writeLn(wrt, line2);
-                                    line2 = br2.readLine();
+                    private int partOf(String key) {
+                        int h = key.hashCode() ^ (0x9E3779B9 * (depth + 1));
+                        h ^= h >>> 16;
+                        h *= 0x85EBCA6B;
+                        h ^= h >>> 13;
+                        h *= 0xC2B2AE35;
+                        h ^= h >>> 16;
+                        return (h & Integer.MAX_VALUE) % fanIn;
+                    }
+
+                    private void finish() {
+                        if (parts == null) {
+                            for (Map.Entry<String, List<String>> entry : table.entrySet()) {
+                                List<String> records = entry.getValue();
+                                if (sumRule != null) {
+                                    // a whole group: no summary left pending in the rule while the next partition is read
+                                    String partial = records.get(0);
+                                    sumRule.reset();
+                                    sumRule.add(partial);
+                                    out.write(entry.getKey(), sumRule.getSummary(partial));
+                                } else {
+                                    reduce(entry.getKey(), records);
                                 }
                             }
+                            table.clear();
+                            return;
+                        }
+                        for (int k = 0; k < fanIn; k++) {
+                            try {
+                                parts[k].close();
+                            } catch (IOException e) {
+                                throw new SortException(e, "Error writing the file %s", files[k].getAbsolutePath());
+                            }
+                        }
+                        for (File file : files) {
+                            RecordSource source = RecordSource.ofRun(file, compress, frontCoding, null);
+                            HashGroup sub = new HashGroup(depth + 1);
+                            try (RecordSource.RecordReader rd = source.open(charset)) {
+                                String line;
+                                while ((line = rd.readLine()) != null) {
+                                    sub.add(line);
+                                }
+                            } catch (IOException e) {
+                                throw new SortException(e, "Error reading %s", source.name());
+                            }
+                            sub.finish();
+                            dispose(source);
                         }
-                        flush(wrt);
-                    } catch (IOException e) {
-                        throw new SortException(e, "Error merging file %s,%s -> %s",
-                            src1.getAbsolutePath(),
-                            src2.getAbsolutePath(),
-                            dest.getAbsolutePath());
                     }
                 }
+            }
 
-                protected void flush(BufferedWriter wrt) throws IOException {
-                    // could be overwritten
-                }
+            /*
+             * OUTFIL: the records of each output are handed in batches to its own thread, that writes them in order;
+             * the batches waiting to be written are bounded for each output
+             */
+            private class OutFilWriter implements Closeable {
+                private final OutFil[] outputs;
+                private final BufferedWriter[] writers;
+                private final ExecutorService[] threads;
+                private final List<List<String>> batches = new ArrayList<>();
+                private final Semaphore[] inFlight;
+                private final LinkedList<Future<?>> writing = new LinkedList<>();
 
-                protected void writeLn(BufferedWriter wrt, String line) throws IOException {
-                    wrt.write(line);
-                    wrt.newLine();
+                private OutFilWriter(OutFil[] outputs) {
+                    this.outputs = outputs;
+                    this.writers = new BufferedWriter[outputs.length];
+                    this.threads = new ExecutorService[outputs.length];
+                    this.inFlight = new Semaphore[outputs.length];
+                    for (int k = 0; k < outputs.length; k++) {
+                        batches.add(new ArrayList<String>(BATCH_SIZE));
+                        inFlight[k] = new Semaphore(MAX_BATCH);
+                        threads[k] = Executors.newSingleThreadExecutor();
+                        try {
+                            writers[k] = Files.newBufferedWriter(outputs[k].target().toPath(), charset);
+                        } catch (IOException e) {
+                            close();
+                            throw new SortException(e, "Error writing the file %s", nameOf(k));
+                        }
+                    }
                 }
-            }
 
-            private class FinalMergeTask extends MergeTask {
-                public FinalMergeTask(File src1, File src2, Phaser phaser) {
-                    super(src1, src2, target, phaser);
+                private String nameOf(int k) {
+                    return outputs[k].target().getAbsolutePath();
                 }
 
-                @Override
-                protected void writeLn(BufferedWriter wrt, String line) throws IOException {
-                    String stuff = reorgWriter ==null ? line : reorgWriter.reduce(line);
-                    if (stuff != null) {
-                        if (outRecFcn != null)
-                            stuff = outRecFcn.apply(stuff);
-                        super.writeLn(wrt, stuff);
+                private void write(String line) {
+                    for (int k = 0; k < outputs.length; k++) {
+                        if (outputs[k].test(line)) {
+                            List<String> batch = batches.get(k);
+                            batch.add(outputs[k].apply(line));
+                            if (batch.size() >= BATCH_SIZE)
+                                submit(k);
+                        }
                     }
                 }
 
-                @Override
-                protected void flush(BufferedWriter wrt) throws IOException {
-                    if (reorgWriter != null) {
-                        String stuff = reorgWriter.flush();
-                        if (stuff != null) {
-                            if (outRecFcn != null)
-                                stuff = outRecFcn.apply(stuff);
-                            super.writeLn(wrt, stuff);
-                        }
+                private void submit(final int k) {
+                    final List<String> batch = batches.get(k);
+                    batches.set(k, new ArrayList<String>(BATCH_SIZE));
+                    // a failed output stops the sort at the next batch
+                    while (!writing.isEmpty() && writing.getFirst().isDone()) {
+                        await(writing.removeFirst());
+                    }
+                    inFlight[k].acquireUninterruptibly();
+                    try {
+                        writing.add(threads[k].submit(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    for (String line : batch) {
+                                        writers[k].write(line);
+                                        writers[k].newLine();
+                                    }
+                                } catch (IOException e) {
+                                    throw new SortException(e, "Error writing the file %s", nameOf(k));
+                                } finally {
+                                    inFlight[k].release();
+                                }
+                            }
+                        }));
+                    } catch (RejectedExecutionException e) {
+                        inFlight[k].release();
+                        throw e;
                     }
                 }
-            }
 
-            private class Splitter {
-                private final List<String> data = new ArrayList<>(maxNumRecord);
-                private final List<File> splitFiles = new LinkedList<>();
-
-                public boolean process(String line) {
-                    if (includeFilter == null || includeFilter.test(line)) {
-                        if (inRecFcn != null)
-                            line = inRecFcn.apply(line);
-                        if (data.size() >= maxNumRecord) {
-                            File chunk = sortAndSave(data);
-                            splitFiles.add(chunk);
-                            data.clear();
+                @Override
+                public void close() {
+                    Throwable failure = null;
+                    try {
+                        for (int k = 0; k < outputs.length; k++) {
+                            if (writers[k] != null && !batches.get(k).isEmpty())
+                                submit(k);
+                        }
+                        while (!writing.isEmpty()) {
+                            await(writing.removeFirst());
+                        }
+                    } catch (RuntimeException | Error e) {
+                        failure = e;
+                    } finally {
+                        for (ExecutorService thread : threads) {
+                            if (thread != null)
+                                stop(thread, failure != null);
                         }
-                        data.add(line);
-                        return true;
-                    } else {
-                        return false;
                     }
-                }
-
-                private void save(List<String> data, File file) {
-                    try (BufferedWriter bw = Files.newBufferedWriter(file.toPath(), charset)) {
-                        for (String datum : data) {
-                            bw.write(datum);
-                            bw.newLine();
+                    // the files are closed anyway, their errors are added to the first one
+                    for (int k = 0; k < outputs.length; k++) {
+                        if (writers[k] != null) {
+                            try {
+                                writers[k].close();
+                            } catch (IOException e) {
+                                SortException error = new SortException(e, "Error writing the file %s", nameOf(k));
+                                if (failure == null) {
+                                    failure = error;
+                                } else {
+                                    failure.addSuppressed(error);
+                                }
+                            }
                         }
-                    } catch (IOException e) {
-                        throw new SortException(e, "Error writing the file %s", file.getAbsolutePath());
                     }
+                    if (failure != null)
+                        throw propagate(failure);
                 }
 
-                private File sortAndSave(List<String> data) {
-                    Collections.sort(data, comparator);
-                    File file;
+                /*
+                 * after a failure the pending batches are dropped, and the batch being written is waited for
+                 * before its file is closed
+                 */
+                private void stop(ExecutorService thread, boolean failed) {
+                    if (!failed) {
+                        thread.shutdown();
+                        return;
+                    }
+                    thread.shutdownNow();
                     try {
-                        file = File.createTempFile(PREFIX, SUFFIX, swap);
-                        file.deleteOnExit();
-                        save(data, file);
-                    } catch (IOException e) {
-                        throw new SortException(e, "Error creating temporary files");
+                        thread.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
                     }
-                    return file;
                 }
+            }
 
-                private void sortAndFinalSave(List<String> data, File file) {
-                    Collections.sort(data, comparator);
-                    if (reorgWriter != null) {
-                        data = reorg(data);
-                    }
-                    if (outRecFcn != null) {
-                        List<String> good = new ArrayList<>();
-                        for(String line: data) {
-                            good.add(outRecFcn.apply(line));
+            /*
+             * output of a group by, each reduced record written to the file of its key
+             */
+            private class GroupWriter implements Closeable {
+                private final File[] outputs;
+                private final BufferedWriter[] writers;
+                private long written = 0;
+
+                private GroupWriter(File[] outputs) {
+                    this.outputs = outputs;
+                    this.writers = new BufferedWriter[outputs.length];
+                    for (int k = 0; k < outputs.length; k++) {
+                        try {
+                            writers[k] = Files.newBufferedWriter(outputs[k].toPath(), charset);
+                        } catch (IOException e) {
+                            close();
+                            throw new SortException(e, "Error writing the file %s", outputs[k].getAbsolutePath());
                         }
-                        data = good;
                     }
-                    save(data, file);
                 }
 
-                private List<String> reorg(List<String> data) {
-                    List<String> roll = new ArrayList<>();
-                    for(String line: data) {
-                        String temp = reorgWriter.reduce(line);
-                        if (temp != null)
-                            roll.add(temp);
+                /**
+                 * Writes the record of a group to the output file of its key
+                 *
+                 * @param key   normalized key of the group (see {@link KeyedLine})
+                 * @param stuff reduced record
+                 */
+                private void write(String key, String stuff) {
+                    if (written++ >= limit)
+                        return;     // the groups beyond the limit are still read
+                    int k = outputs.length == 1 ? 0 : (key.hashCode() & Integer.MAX_VALUE) % outputs.length;
+                    if (outRecFcn != null)
+                        stuff = outRecFcn.apply(stuff);
+                    try {
+                        writers[k].write(stuff);
+                        writers[k].newLine();
+                    } catch (IOException e) {
+                        throw new SortException(e, "Error writing the file %s", outputs[k].getAbsolutePath());
                     }
-                    String temp = reorgWriter.flush();
-                    if (temp != null)
-                        roll.add(temp);
-                    return roll;
                 }
 
-                public List<File> files() {
-                    if (data.isEmpty()) {
-                        // no data pending (no save required), return as-is
-                        return splitFiles;
-                    } else {
-                        // some pending data
-                        if (splitFiles.isEmpty()) {
-                            // no file for now -> all in one file (the final one)
-                            sortAndFinalSave(data, target);
-                            return Collections.singletonList(target);
-                        } else {
-                            // add remainder
-                            File chunk = sortAndSave(data);
-                            splitFiles.add(chunk);
-                            return splitFiles;
+                @Override
+                public void close() {
+                    SortException failure = null;
+                    for (int k = 0; k < writers.length; k++) {
+                        if (writers[k] != null) {
+                            try {
+                                writers[k].close();
+                            } catch (IOException e) {
+                                if (failure == null)
+                                    failure = new SortException(e, "Error writing the file %s", outputs[k].getAbsolutePath());
+                            }
                         }
                     }
+                    if (failure != null)
+                        throw failure;
                 }
             }
 
-            private class FirstReorgWriter implements RecordAccumulator {
+            /*
+             * built-in reorganization: a parallel final merge needs a new writer for each key range
+             */
+            private abstract class ReorgWriter implements RunAccumulator {
+                protected abstract ReorgWriter copy();
+            }
+
+            private class FirstReorgWriter extends ReorgWriter {
                 private String cache = null;
+                @Override
+                protected ReorgWriter copy() {
+                    return new FirstReorgWriter();
+                }
+
                 @Override
                 public String reduce(String line) {
-                    if (cache == null || comparator.compare(cache, line) != 0) {
+                    if (cache == null || runOrder.compare(cache, line) != 0) {
                         cache = line;
-                        return line;
+                        return recordOf(line);
                     } else {
                         return null;
                     }
@@ -468,22 +2540,27 @@ class PmSortEngine implements LayerSortIn {
                 }
             }
 
-            private class AllDupsReorgWriter implements RecordAccumulator {
+            private class AllDupsReorgWriter extends ReorgWriter {
                 private String cache = null;
                 private boolean pendingWrite;
+                @Override
+                protected ReorgWriter copy() {
+                    return new AllDupsReorgWriter();
+                }
+
                 @Override
                 public String reduce(String line) {
                     if (cache == null) {
                         cache = line;
                         pendingWrite = false;
                         return null;
-                    } else if (comparator.compare(cache, line) == 0) {
-                        String out = cache;
+                    } else if (runOrder.compare(cache, line) == 0) {
+                        String out = recordOf(cache);
                         cache = line;
                         pendingWrite = true;
                         return out;
                     } else {
-                        String out = pendingWrite ? cache: null;
+                        String out = pendingWrite ? recordOf(cache) : null;
                         cache = line;
                         pendingWrite = false;
                         return out;
@@ -494,27 +2571,32 @@ class PmSortEngine implements LayerSortIn {
                 public String flush() {
                     if (pendingWrite) {
                         pendingWrite = false;
-                        return cache;
+                        return recordOf(cache);
                     } else {
                         return null;
                     }
                 }
             }
 
-            private class NoDupsReorgWriter implements RecordAccumulator {
+            private class NoDupsReorgWriter extends ReorgWriter {
                 private String cache = null;
                 private boolean pendingWrite;
+                @Override
+                protected ReorgWriter copy() {
+                    return new NoDupsReorgWriter();
+                }
+
                 @Override
                 public String reduce(String line) {
                     if (cache == null) {
                         cache = line;
                         pendingWrite = true;
                         return null;
-                    } else if (comparator.compare(cache, line) == 0) {
+                    } else if (runOrder.compare(cache, line) == 0) {
                         pendingWrite = false;
                         return null;
                     } else {
-                        String out = pendingWrite ? cache : null;
+                        String out = pendingWrite ? recordOf(cache) : null;
                         cache = line;
                         pendingWrite = true;
                         return out;
@@ -525,22 +2607,27 @@ class PmSortEngine implements LayerSortIn {
                 public String flush() {
                     if (pendingWrite) {
                         pendingWrite = false;
-                        return cache;
+                        return recordOf(cache);
                     } else {
                         return null;
                     }
                 }
             }
 
-            private class LastReorgWriter implements RecordAccumulator {
+            private class LastReorgWriter extends ReorgWriter {
                 private String cache = null;
+                @Override
+                protected ReorgWriter copy() {
+                    return new LastReorgWriter();
+                }
+
                 @Override
                 public String reduce(String line) {
                     String out;
-                    if (cache == null || comparator.compare(cache, line) == 0) {
+                    if (cache == null || runOrder.compare(cache, line) == 0) {
                         out = null;
                     } else {
-                        out = cache;
+                        out = recordOf(cache);
                     }
                     cache = line;
                     return out;
@@ -548,23 +2635,28 @@ class PmSortEngine implements LayerSortIn {
 
                 @Override
                 public String flush() {
-                    return cache;
+                    return cache == null ? null : recordOf(cache);
                 }
             }
 
-            private class FirstDupReorgWriter implements RecordAccumulator {
+            private class FirstDupReorgWriter extends ReorgWriter {
                 private String cache = null;
                 private boolean isGarbage;
+                @Override
+                protected ReorgWriter copy() {
+                    return new FirstDupReorgWriter();
+                }
+
                 @Override
                 public String reduce(String line) {
                     String out;
-                    if (cache == null || comparator.compare(cache, line) != 0) {
+                    if (cache == null || runOrder.compare(cache, line) != 0) {
                         isGarbage = false;
                         out = null;
                     } else if (isGarbage) {
                         out = null;
                     } else {
-                        out = cache;
+                        out = recordOf(cache);
                         isGarbage = true;
                     }
                     cache = line;
@@ -577,23 +2669,28 @@ class PmSortEngine implements LayerSortIn {
                 }
             }
 
-            private class LastDupReorgWriter implements RecordAccumulator {
+            private class LastDupReorgWriter extends ReorgWriter {
                 private String cache = null;
                 private boolean isGarbage;
+                @Override
+                protected ReorgWriter copy() {
+                    return new LastDupReorgWriter();
+                }
+
                 @Override
                 public String reduce(String line) {
                     String out;
                     if (cache == null) {
                         isGarbage = true;
                         out = null;
-                    } else if (comparator.compare(cache, line) == 0) {
+                    } else if (runOrder.compare(cache, line) == 0) {
                         isGarbage = false;
                         out = null;
                     } else if (isGarbage) {
                         out = null;
                     } else {
                         isGarbage = true;
-                        out = cache;
+                        out = recordOf(cache);
                     }
                     cache = line;
                     return out;
@@ -601,7 +2698,7 @@ class PmSortEngine implements LayerSortIn {
 
                 @Override
                 public String flush() {
-                    return isGarbage ? null : cache;
+                    return isGarbage || cache == null ? null : recordOf(cache);
                 }
             }
         }
@@ -0,0 +1,80 @@
+package io.github.epi155.pm.sort;
+
+import java.util.List;
+
+/**
+ * Stable MSD radix sort of keyed records (see {@link KeyedLine}).
+ * <p>
+ * Records are distributed by one key byte at a time, records whose key is over come first;
+ * small buckets are sorted by insertion, by comparison of the remaining key bytes.
+ * Records with equal keys keep their order.
+ * </p>
+ */
+final class RadixSort {
+    private static final int CUTOFF = 32;
+    private static final int RADIX = 256;
+
+    private RadixSort() {
+    }
+
+    static void sort(List<String> data) {
+        String[] a = data.toArray(new String[data.size()]);
+        msd(a, new String[a.length], 0, a.length, 0);
+        for (int i = 0; i < a.length; i++) {
+            data.set(i, a[i]);
+        }
+    }
+
+    // key byte at depth d plus one, 0 when the key is over
+    private static int digit(String s, int d) {
+        return d < s.charAt(0) ? s.charAt(1 + d) + 1 : 0;
+    }
+
+    private static void msd(String[] a, String[] aux, int lo, int hi, int d) {
+        if (hi - lo <= CUTOFF) {
+            insertion(a, lo, hi, d);
+            return;
+        }
+        int[] count = new int[RADIX + 2];
+        for (int i = lo; i < hi; i++) {
+            count[digit(a[i], d) + 1]++;
+        }
+        for (int r = 0; r <= RADIX; r++) {
+            count[r + 1] += count[r];
+        }
+        for (int i = lo; i < hi; i++) {
+            aux[count[digit(a[i], d)]++] = a[i];
+        }
+        System.arraycopy(aux, 0, a, lo, hi - lo);
+        // count[r] is now the end of bucket r; bucket 0 (key over) is complete
+        for (int r = 1; r <= RADIX; r++) {
+            int from = lo + count[r - 1];
+            int to = lo + count[r];
+            if (to - from > 1)
+                msd(a, aux, from, to, d + 1);
+        }
+    }
+
+    private static void insertion(String[] a, int lo, int hi, int d) {
+        for (int i = lo + 1; i < hi; i++) {
+            for (int j = i; j > lo && compare(a[j - 1], a[j], d) > 0; j--) {
+                String t = a[j];
+                a[j] = a[j - 1];
+                a[j - 1] = t;
+            }
+        }
+    }
+
+    private static int compare(String s1, String s2, int d) {
+        int len1 = s1.charAt(0);
+        int len2 = s2.charAt(0);
+        int len = Math.min(len1, len2);
+        for (int k = d + 1; k <= len; k++) {
+            char c1 = s1.charAt(k);
+            char c2 = s2.charAt(k);
+            if (c1 != c2)
+                return c1 < c2 ? -1 : 1;
+        }
+        return len1 - len2;
+    }
+}
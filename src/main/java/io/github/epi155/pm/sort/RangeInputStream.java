@@ -0,0 +1,74 @@
+package io.github.epi155.pm.sort;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Input stream over a byte range of a file.
+ * <p>
+ * Reads are positional, so several streams can share the file without sharing a file position;
+ * closing the stream closes the channel.
+ * </p>
+ */
+class RangeInputStream extends InputStream {
+    private static final int SCAN_SIZE = 8 * 1024;
+    private final FileChannel channel;
+    private final long end;
+    private long pos;
+
+    RangeInputStream(FileChannel channel, long start, long end) {
+        this.channel = channel;
+        this.pos = start;
+        this.end = end;
+    }
+
+    /**
+     * Finds the start of the line following the given position
+     *
+     * @param channel file channel
+     * @param from    starting position
+     * @return position just after the first line feed at or after {@code from}, or the file size
+     * @throws IOException error reading the file
+     */
+    static long nextLine(FileChannel channel, long from) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_SIZE);
+        long pos = from;
+        int n;
+        while ((n = channel.read(buffer, pos)) > 0) {
+            for (int k = 0; k < n; k++) {
+                if (buffer.get(k) == '\n')
+                    return pos + k + 1;
+            }
+            pos += n;
+            buffer.clear();
+        }
+        return channel.size();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (pos >= end)
+            return -1;
+        int size = (int) Math.min(len, end - pos);
+        int n = channel.read(ByteBuffer.wrap(b, off, size), pos);
+        if (n < 0)
+            return -1;
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
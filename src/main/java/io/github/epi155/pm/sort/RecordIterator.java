@@ -0,0 +1,30 @@
+package io.github.epi155.pm.sort;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Iterator over the sorted records
+ * <p>
+ * The last merge pass runs while the records are requested; the iterator must be closed
+ * (for example with try-with-resources) to release the temporary files when it is not read to the end.
+ * </p>
+ * <pre>
+ * try (RecordIterator it = SortEngine.using(256)
+ *         .sortIn(source)
+ *         .sort()
+ *         .sortOut()) {
+ *     while (it.hasNext()) {
+ *         String line = it.next();
+ *         ...
+ *     }
+ * }
+ * </pre>
+ */
+public interface RecordIterator extends Iterator<String>, Closeable {
+    /**
+     * Stops the iteration and deletes the temporary files
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,450 @@
+package io.github.epi155.pm.sort;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Source of the records to be sorted.
+ * <p>
+ * A file is opened (and closed) at each sort; streams, readers and iterators provided by the caller
+ * are read to the end, and are not closed.
+ * </p>
+ */
+abstract class RecordSource {
+    /**
+     * Opens the source
+     *
+     * @param charset charset of the bytes (file and stream sources)
+     * @return record reader
+     * @throws IOException error opening the source
+     */
+    abstract RecordReader open(Charset charset) throws IOException;
+
+    /**
+     * Provides the source description for the error messages
+     *
+     * @return source description
+     */
+    abstract String name();
+
+    /**
+     * Provides the source file, when the source can be read by byte ranges
+     *
+     * @return source file, or null
+     */
+    File file() {
+        return null;
+    }
+
+    /**
+     * Provides the size of the source, used to merge the smallest sources first
+     *
+     * @return size in bytes, 0 if unknown
+     */
+    long size() {
+        return 0;
+    }
+
+    /**
+     * Provides the block index, when the source is a temporary sorted file
+     *
+     * @return offset and first record of each block, or null
+     */
+    List<RunWriter.Block> blocks() {
+        return null;
+    }
+
+    /**
+     * Provides the records of a key range of a sorted source;
+     * a temporary sorted file is read from the block where the range begins, any other source from the beginning
+     *
+     * @param comparator record order
+     * @param from       first record of the range (included), null from the beginning
+     * @param to         first record of the next range (excluded), null up to the end
+     * @return record source, not disposable
+     */
+    RecordSource range(final Comparator<String> comparator, final String from, final String to) {
+        final RecordSource source = this;
+        return new RecordSource() {
+            @Override
+            RecordReader open(Charset charset) throws IOException {
+                return rangeOf(source.open(charset), comparator, from, to);
+            }
+
+            @Override
+            String name() {
+                return source.name();
+            }
+        };
+    }
+
+    /**
+     * Releases the source once it has been read: a temporary file is deleted
+     *
+     * @throws IOException error deleting the file
+     */
+    void dispose() throws IOException {
+        // provided by the caller, kept
+    }
+
+    /**
+     * Temporary sorted file, written by {@link RunWriter}
+     *
+     * @param file        temporary file
+     * @param compress    compressed blocks
+     * @param frontCoding front coded records
+     * @param blocks      block index
+     * @return record source
+     */
+    static RecordSource ofRun(final File file, final boolean compress, final boolean frontCoding,
+                              final List<RunWriter.Block> blocks) {
+        return new RecordSource() {
+            @Override
+            RecordReader open(Charset charset) throws IOException {
+                return new RunReader(file, compress, frontCoding);
+            }
+
+            @Override
+            String name() {
+                return "the file " + file.getAbsolutePath();
+            }
+
+            @Override
+            long size() {
+                return file.length();
+            }
+
+            @Override
+            List<RunWriter.Block> blocks() {
+                return blocks;
+            }
+
+            @Override
+            RecordSource range(final Comparator<String> comparator, final String from, final String to) {
+                // the range begins in the last block starting below it
+                long start = 0;
+                for (RunWriter.Block block : blocks) {
+                    if (from == null || comparator.compare(block.first, from) >= 0)
+                        break;
+                    start = block.offset;
+                }
+                final long offset = start;
+                return new RecordSource() {
+                    @Override
+                    RecordReader open(Charset charset) throws IOException {
+                        return rangeOf(new RunReader(file, compress, frontCoding, offset), comparator, from, to);
+                    }
+
+                    @Override
+                    String name() {
+                        return "the file " + file.getAbsolutePath();
+                    }
+                };
+            }
+
+            @Override
+            void dispose() throws IOException {
+                Files.delete(file.toPath());
+            }
+        };
+    }
+
+    /**
+     * Source of keyed records (see {@link KeyedLine})
+     *
+     * @param source    record source
+     * @param extractor key extractor
+     * @return record source
+     */
+    static RecordSource keyed(final RecordSource source, final KeyExtractor extractor) {
+        return new RecordSource() {
+            @Override
+            RecordReader open(Charset charset) throws IOException {
+                final RecordReader rd = source.open(charset);
+                return new RecordReader() {
+                    @Override
+                    public String readLine() throws IOException {
+                        String line = rd.readLine();
+                        return line == null ? null : KeyedLine.wrap(extractor, line);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        rd.close();
+                    }
+                };
+            }
+
+            @Override
+            String name() {
+                return source.name();
+            }
+
+            @Override
+            long size() {
+                return source.size();
+            }
+
+            @Override
+            void dispose() throws IOException {
+                source.dispose();
+            }
+        };
+    }
+
+    /**
+     * Source that must already be sorted: reading a record smaller than the previous one is an error
+     *
+     * @param source     sorted source
+     * @param comparator record order
+     * @return record source
+     */
+    static RecordSource ordered(final RecordSource source, final Comparator<String> comparator) {
+        return new RecordSource() {
+            @Override
+            RecordReader open(Charset charset) throws IOException {
+                final RecordReader rd = source.open(charset);
+                return new RecordReader() {
+                    private String last = null;
+                    private long count = 0;
+
+                    @Override
+                    public String readLine() throws IOException {
+                        String line = rd.readLine();
+                        if (line != null) {
+                            count++;
+                            if (last != null && comparator.compare(last, line) > 0)
+                                throw new IOException(String.format("Record %d of %s out of order", count, source.name()));
+                            last = line;
+                        }
+                        return line;
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        rd.close();
+                    }
+                };
+            }
+
+            @Override
+            String name() {
+                return source.name();
+            }
+
+            @Override
+            long size() {
+                return source.size();
+            }
+        };
+    }
+
+    static RecordSource of(final File file) {
+        return new RecordSource() {
+            @Override
+            RecordReader open(Charset charset) throws IOException {
+                return readerOf(Files.newBufferedReader(file.toPath(), charset), true);
+            }
+
+            @Override
+            String name() {
+                return "the file " + file.getAbsolutePath();
+            }
+
+            @Override
+            File file() {
+                return file;
+            }
+
+            @Override
+            long size() {
+                return file.length();
+            }
+        };
+    }
+
+    /**
+     * Temporary text file, deleted once read
+     *
+     * @param file temporary file
+     * @return record source
+     */
+    static RecordSource ofTemp(final File file) {
+        return new RecordSource() {
+            @Override
+            RecordReader open(Charset charset) throws IOException {
+                return readerOf(Files.newBufferedReader(file.toPath(), charset), true);
+            }
+
+            @Override
+            String name() {
+                return "the file " + file.getAbsolutePath();
+            }
+
+            @Override
+            long size() {
+                return file.length();
+            }
+
+            @Override
+            void dispose() throws IOException {
+                Files.delete(file.toPath());
+            }
+        };
+    }
+
+    static RecordSource of(final File file, final long start, final long end) {
+        return new RecordSource() {
+            @Override
+            RecordReader open(Charset charset) throws IOException {
+                FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                InputStream is = new RangeInputStream(channel, start, end);
+                return readerOf(new BufferedReader(new InputStreamReader(is, charset.newDecoder())), true);
+            }
+
+            @Override
+            String name() {
+                return "the file " + file.getAbsolutePath();
+            }
+        };
+    }
+
+    static RecordSource of(final InputStream is) {
+        return new RecordSource() {
+            @Override
+            RecordReader open(Charset charset) {
+                return readerOf(new BufferedReader(new InputStreamReader(is, charset.newDecoder())), false);
+            }
+
+            @Override
+            String name() {
+                return "the input stream";
+            }
+        };
+    }
+
+    static RecordSource of(final Reader reader) {
+        return new RecordSource() {
+            @Override
+            RecordReader open(Charset charset) {
+                BufferedReader br = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+                return readerOf(br, false);
+            }
+
+            @Override
+            String name() {
+                return "the reader";
+            }
+        };
+    }
+
+    static RecordSource of(final Iterable<String> lines) {
+        return new RecordSource() {
+            @Override
+            RecordReader open(Charset charset) {
+                return readerOf(lines.iterator());
+            }
+
+            @Override
+            String name() {
+                return "the records";
+            }
+        };
+    }
+
+    static RecordSource of(final Iterator<String> lines) {
+        return new RecordSource() {
+            @Override
+            RecordReader open(Charset charset) {
+                return readerOf(lines);
+            }
+
+            @Override
+            String name() {
+                return "the records";
+            }
+        };
+    }
+
+    private static RecordReader rangeOf(final RecordReader rd, final Comparator<String> comparator,
+                                        final String from, final String to) {
+        return new RecordReader() {
+            private boolean started = from == null;
+            private boolean ended = false;
+
+            @Override
+            public String readLine() throws IOException {
+                if (ended)
+                    return null;
+                String line = rd.readLine();
+                while (!started && line != null && comparator.compare(line, from) < 0) {
+                    line = rd.readLine();
+                }
+                started = true;
+                if (line != null && to != null && comparator.compare(line, to) >= 0)
+                    line = null;
+                ended = line == null;
+                return line;
+            }
+
+            @Override
+            public void close() throws IOException {
+                rd.close();
+            }
+        };
+    }
+
+    private static RecordReader readerOf(final BufferedReader br, final boolean owned) {
+        return new RecordReader() {
+            @Override
+            public String readLine() throws IOException {
+                return br.readLine();
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (owned)
+                    br.close();
+            }
+        };
+    }
+
+    private static RecordReader readerOf(final Iterator<String> it) {
+        return new RecordReader() {
+            @Override
+            public String readLine() {
+                return it.hasNext() ? it.next() : null;
+            }
+
+            @Override
+            public void close() {
+                // nothing to release
+            }
+        };
+    }
+
+    /**
+     * Sequential reader of the records
+     */
+    interface RecordReader extends Closeable {
+        /**
+         * Reads a record
+         *
+         * @return the record, or null at the end of the source
+         * @throws IOException error reading the source
+         */
+        String readLine() throws IOException;
+    }
+}
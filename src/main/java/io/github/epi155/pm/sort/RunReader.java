@@ -0,0 +1,180 @@
+package io.github.epi155.pm.sort;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reader of the temporary sorted files written by {@link RunWriter}.
+ */
+class RunReader implements RecordSource.RecordReader {
+    private final InputStream is;
+    private final byte[] header = new byte[8];
+    private final Inflater inflater;
+    private final boolean frontCoding;
+    private char[] chars = new char[256];   // last record (front coding)
+    private byte[] block = new byte[RunWriter.BLOCK_SIZE + 1024];
+    private byte[] packed = null;
+    private int limit = 0;
+    private int pos = 0;
+
+    RunReader(File file, boolean compress, boolean frontCoding) throws IOException {
+        this(file, compress, frontCoding, 0);
+    }
+
+    /**
+     * Reader starting from a block
+     *
+     * @param file        temporary sorted file
+     * @param compress    compressed blocks
+     * @param frontCoding front coded records
+     * @param offset      offset of the block (see {@link RunWriter#blocks()})
+     * @throws IOException error opening the file
+     */
+    RunReader(File file, boolean compress, boolean frontCoding, long offset) throws IOException {
+        this.is = Files.newInputStream(file.toPath());
+        this.inflater = compress ? new Inflater() : null;
+        this.frontCoding = frontCoding;
+        try {
+            skipFully(offset);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void skipFully(long size) throws IOException {
+        long done = 0;
+        while (done < size) {
+            long n = is.skip(size - done);
+            if (n <= 0)
+                throw new EOFException("Truncated file");
+            done += n;
+        }
+    }
+
+    /**
+     * Reads a record
+     *
+     * @return the record, or null at end-of-file
+     * @throws IOException error reading the file
+     */
+    @Override
+    public String readLine() throws IOException {
+        if (pos >= limit && !readBlock())
+            return null;
+        int shared = frontCoding ? readVarInt() : 0;
+        int info = readVarInt();
+        int len = info >>> 1;
+        boolean latin1 = (info & 1) == 0;
+        if (shared == 0 && latin1) {
+            String line = new String(block, pos, len, StandardCharsets.ISO_8859_1);
+            pos += len;
+            if (frontCoding)
+                keep(line);
+            return line;
+        }
+        if (shared + len > chars.length) {
+            char[] wide = new char[Math.max(2 * chars.length, shared + len)];
+            System.arraycopy(chars, 0, wide, 0, shared);
+            chars = wide;
+        }
+        if (latin1) {
+            for (int i = shared; i < shared + len; i++) {
+                chars[i] = (char) (block[pos++] & 0xFF);
+            }
+        } else {
+            for (int i = shared; i < shared + len; i++) {
+                chars[i] = (char) (((block[pos] & 0xFF) << 8) | (block[pos + 1] & 0xFF));
+                pos += 2;
+            }
+        }
+        return new String(chars, 0, shared + len);
+    }
+
+    private void keep(String line) {
+        if (line.length() > chars.length)
+            chars = new char[Math.max(2 * chars.length, line.length())];
+        line.getChars(0, line.length(), chars, 0);
+    }
+
+    private int readVarInt() {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = block[pos++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private boolean readBlock() throws IOException {
+        if (!readFully(header, inflater == null ? 4 : 8))
+            return false;
+        int size = getInt(0);
+        if (size > block.length)
+            block = new byte[size];
+        if (inflater == null || getInt(4) == size) {
+            if (!readFully(block, size))
+                throw new EOFException("Truncated block");
+        } else {
+            inflate(getInt(4), size);
+        }
+        limit = size;
+        pos = 0;
+        return true;
+    }
+
+    private void inflate(int stored, int size) throws IOException {
+        if (packed == null || packed.length < stored)
+            packed = new byte[Math.max(stored, RunWriter.BLOCK_SIZE)];
+        if (!readFully(packed, stored))
+            throw new EOFException("Truncated block");
+        inflater.reset();
+        inflater.setInput(packed, 0, stored);
+        try {
+            int done = 0;
+            while (done < size && !inflater.finished()) {
+                int n = inflater.inflate(block, done, size - done);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new EOFException("Truncated block");
+                done += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted block", e);
+        }
+    }
+
+    private int getInt(int offset) {
+        return ((header[offset] & 0xFF) << 24) | ((header[offset + 1] & 0xFF) << 16) |
+            ((header[offset + 2] & 0xFF) << 8) | (header[offset + 3] & 0xFF);
+    }
+
+    private boolean readFully(byte[] buffer, int size) throws IOException {
+        int done = 0;
+        while (done < size) {
+            int n = is.read(buffer, done, size - done);
+            if (n < 0) {
+                if (done == 0)
+                    return false;
+                throw new EOFException("Truncated block");
+            }
+            done += n;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (inflater != null)
+            inflater.end();
+        is.close();
+    }
+}
@@ -0,0 +1,195 @@
+package io.github.epi155.pm.sort;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Writer of the temporary sorted files.
+ * <p>
+ * The records are not encoded with the job charset, they are written in an internal format,
+ * read back by {@link RunReader}:
+ * a sequence of blocks, each one made of its length (4 bytes) and of the records;
+ * each record is its length (varint, the lowest bit tells whether it is Latin-1 or UTF-16)
+ * followed by its characters (1 or 2 bytes each).
+ * </p>
+ * <p>
+ * When compression is enabled, each block is deflated on its own ({@link Deflater#BEST_SPEED}),
+ * and its header is made of the original length and of the stored length (4 bytes each);
+ * a block that does not shrink is stored as-is, with the two lengths equal.
+ * </p>
+ * <p>
+ * When front coding is enabled, each record is preceded by the number of leading characters (varint)
+ * it shares with the previous record of the same block, and only the remaining characters are written.
+ * </p>
+ * <p>
+ * Blocks are decoded on their own: the writer keeps the offset and the first record of each block,
+ * so that a sorted file can be read from the block where a key range begins.
+ * </p>
+ */
+class RunWriter implements Closeable {
+    static final int BLOCK_SIZE = 64 * 1024;
+    private final OutputStream os;
+    private final byte[] header = new byte[8];
+    private final Deflater deflater;
+    private final boolean frontCoding;
+    private final List<Block> blocks = new ArrayList<>();
+    private long offset = 0;        // bytes written
+    private String last = null;     // previous record of the block (front coding)
+    private byte[] block = new byte[BLOCK_SIZE + 1024];
+    private byte[] packed = null;
+    private int pos = 0;
+
+    RunWriter(File file, boolean compress, boolean frontCoding) throws IOException {
+        this.os = Files.newOutputStream(file.toPath());
+        this.deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        this.frontCoding = frontCoding;
+    }
+
+    void write(String line) throws IOException {
+        if (pos == 0)
+            blocks.add(new Block(offset, line));
+        int shared = 0;
+        if (frontCoding) {
+            if (last != null)
+                shared = sharedPrefix(last, line);
+            last = line;
+        }
+        int len = line.length() - shared;
+        boolean latin1 = isLatin1(line, shared);
+        ensureCapacity(10 + (latin1 ? len : 2 * len));
+        if (frontCoding)
+            writeVarInt(shared);
+        writeVarInt(latin1 ? len << 1 : (len << 1) | 1);
+        if (latin1) {
+            for (int i = shared; i < line.length(); i++) {
+                block[pos++] = (byte) line.charAt(i);
+            }
+        } else {
+            for (int i = shared; i < line.length(); i++) {
+                char c = line.charAt(i);
+                block[pos++] = (byte) (c >>> 8);
+                block[pos++] = (byte) c;
+            }
+        }
+        if (pos >= BLOCK_SIZE)
+            flushBlock();
+    }
+
+    private static int sharedPrefix(String s1, String s2) {
+        int max = Math.min(s1.length(), s2.length());
+        int k = 0;
+        while (k < max && s1.charAt(k) == s2.charAt(k)) {
+            k++;
+        }
+        return k;
+    }
+
+    private static boolean isLatin1(String line, int from) {
+        for (int i = from; i < line.length(); i++) {
+            if (line.charAt(i) > 0xFF)
+                return false;
+        }
+        return true;
+    }
+
+    private void writeVarInt(int value) {
+        while ((value & ~0x7F) != 0) {
+            block[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        block[pos++] = (byte) value;
+    }
+
+    private void ensureCapacity(int size) {
+        if (pos + size > block.length) {
+            byte[] wide = new byte[Math.max(2 * block.length, pos + size)];
+            System.arraycopy(block, 0, wide, 0, pos);
+            block = wide;
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        last = null;    // blocks are decoded on their own
+        if (pos == 0)
+            return;
+        putInt(0, pos);
+        if (deflater == null) {
+            os.write(header, 0, 4);
+            os.write(block, 0, pos);
+            offset += 4 + pos;
+        } else {
+            int size = deflate();
+            if (size < pos) {
+                putInt(4, size);
+                os.write(header, 0, 8);
+                os.write(packed, 0, size);
+                offset += 8 + size;
+            } else {
+                putInt(4, pos);
+                os.write(header, 0, 8);
+                os.write(block, 0, pos);
+                offset += 8 + pos;
+            }
+        }
+        pos = 0;
+    }
+
+    private int deflate() {
+        if (packed == null || packed.length < block.length)
+            packed = new byte[block.length];
+        deflater.reset();
+        deflater.setInput(block, 0, pos);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished() && size < pos) {
+            size += deflater.deflate(packed, size, packed.length - size);
+        }
+        return deflater.finished() ? size : pos;
+    }
+
+    private void putInt(int offset, int value) {
+        header[offset] = (byte) (value >>> 24);
+        header[offset + 1] = (byte) (value >>> 16);
+        header[offset + 2] = (byte) (value >>> 8);
+        header[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Provides the block index of the file
+     *
+     * @return offset and first record of each block, complete once the writer is closed
+     */
+    List<Block> blocks() {
+        return blocks;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBlock();
+        } finally {
+            if (deflater != null)
+                deflater.end();
+            os.close();
+        }
+    }
+
+    /**
+     * Block index entry
+     */
+    static final class Block {
+        final long offset;
+        final String first;
+
+        private Block(long offset, String first) {
+            this.offset = offset;
+            this.first = first;
+        }
+    }
+}
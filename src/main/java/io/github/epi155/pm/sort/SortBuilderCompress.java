@@ -0,0 +1,19 @@
+package io.github.epi155.pm.sort;
+
+/**
+ * Partial builder (temporary files compression)
+ */
+public interface SortBuilderCompress extends SortBuilderFrontCoding {
+    /**
+     * Set compression of the temporary files (default false)
+     * <p>
+     * Each block of the temporary files is deflated with {@link java.util.zip.Deflater#BEST_SPEED BEST_SPEED}
+     * by the thread that writes it: spare CPU is traded for fewer bytes written to and read from
+     * the temporary directory.
+     * </p>
+     *
+     * @param compress true to compress the temporary files
+     * @return instance of {@link SortBuilderFrontCoding}
+     */
+    SortBuilderFrontCoding withCompression(boolean compress);
+}
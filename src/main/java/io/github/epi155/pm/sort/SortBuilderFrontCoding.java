@@ -0,0 +1,19 @@
+package io.github.epi155.pm.sort;
+
+/**
+ * Partial builder (temporary files front coding)
+ */
+public interface SortBuilderFrontCoding extends SortBuilderInput {
+    /**
+     * Set front coding of the temporary files (default false)
+     * <p>
+     * Neighbouring records of a sorted file usually share a long prefix (same or nearly equal KEY-SORT):
+     * each record is written as the length of the prefix shared with the previous one and the remaining characters.
+     * Useful for positional files with long keys or headers.
+     * </p>
+     *
+     * @param frontCoding true to front code the temporary files
+     * @return instance of {@link SortBuilderInput}
+     */
+    SortBuilderInput withFrontCoding(boolean frontCoding);
+}
@@ -0,0 +1,21 @@
+package io.github.epi155.pm.sort;
+
+/**
+ * Partial builder (input reading)
+ */
+public interface SortBuilderInput extends SortBuilderSplit {
+    /**
+     * Set parallel reading of the input file (default false)
+     * <p>
+     * The input file is divided into byte ranges aligned to the line terminators,
+     * each range is read, filtered, edited and split into sorted files by its own thread.
+     * Applies to files with a charset that encodes the line feed as a single byte that no other character uses
+     * (UTF-8, ISO-8859-x, ...); the file is read sequentially when records are skipped or limited
+     * ({@code skipRecord}, {@code stopAfter}), or with replacement selection.
+     * </p>
+     *
+     * @param parallelInput true to read the input file in parallel
+     * @return instance of {@link SortBuilderSplit}
+     */
+    SortBuilderSplit withParallelInput(boolean parallelInput);
+}
@@ -0,0 +1,14 @@
+package io.github.epi155.pm.sort;
+
+/**
+ * Partial builder (merge fan-in)
+ */
+public interface SortBuilderMerge extends SortBuilder {
+    /**
+     * Set max number of sorted files merged together in a single pass (default 16)
+     *
+     * @param fanIn max number of files merged together
+     * @return instance of {@link SortBuilder}
+     */
+    SortBuilder withFanIn(int fanIn);
+}
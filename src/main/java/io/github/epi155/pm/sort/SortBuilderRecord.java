@@ -1,14 +1,30 @@
 package io.github.epi155.pm.sort;
 
 /**
- * Partial sort builder (Max Record)
+ * Partial sort builder (Max Record or Max Memory)
  */
 public interface SortBuilderRecord extends SortBuilderCharset {
     /**
-     * Set max records to load in memory (default 2048)
+     * Set max records to load in memory for each chunk (default 2048)
+     * <p>
+     * Chunks are sorted in parallel, so up to <i>maxThread</i>+1 chunks can be in memory at the same time.
+     * </p>
      *
      * @param maxRecord max records to load in memory
      * @return instance of {@link SortBuilderCharset}
      */
     SortBuilderCharset withMaxRecord(int maxRecord);
+
+    /**
+     * Set max heap memory used by the records loaded in memory, in bytes
+     * <p>
+     * Chunks are closed by their estimated size (String object, backing array, list slot)
+     * instead of the number of records.
+     * The budget is shared by the chunk being filled and the <i>maxThread</i> chunks being sorted.
+     * </p>
+     *
+     * @param maxMemory max memory for records, in bytes
+     * @return instance of {@link SortBuilderCharset}
+     */
+    SortBuilderCharset withMaxMemory(long maxMemory);
 }
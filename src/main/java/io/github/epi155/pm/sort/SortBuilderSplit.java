@@ -0,0 +1,20 @@
+package io.github.epi155.pm.sort;
+
+/**
+ * Partial builder (split strategy)
+ */
+public interface SortBuilderSplit extends SortBuilderMerge {
+    /**
+     * Set replacement selection to generate the sorted files (default false)
+     * <p>
+     * Records are kept in a heap of <i>maxRecord</i> records (or <i>maxMemory</i> bytes) instead of a chunk:
+     * on random input the sorted files are about twice as large, so fewer files have to be merged;
+     * an input that is already almost sorted produces a single sorted file.
+     * Records are written by the reading thread.
+     * </p>
+     *
+     * @param replacementSelection true to use replacement selection
+     * @return instance of {@link SortBuilderMerge}
+     */
+    SortBuilderMerge withReplacementSelection(boolean replacementSelection);
+}
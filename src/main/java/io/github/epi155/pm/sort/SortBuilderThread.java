@@ -5,7 +5,11 @@ package io.github.epi155.pm.sort;
  */
 public interface SortBuilderThread extends SortBuilderWork {
     /**
-     * Set max thread (merge phase) (default numCore/2)
+     * Set max thread (split and merge phase) (default numCore/2)
+     * <p>
+     * During the split phase, full chunks are sorted and saved by these threads while the input
+     * is still being read; up to <i>maxThread</i> chunks can be pending at the same time.
+     * </p>
      *
      * @param maxThread max thread
      * @return instance of {@link SortBuilderWork}
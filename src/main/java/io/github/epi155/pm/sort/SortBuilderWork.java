@@ -5,20 +5,20 @@ import java.io.File;
 /**
  * Partial builder (temporary directory)
  */
-public interface SortBuilderWork extends SortBuilder {
+public interface SortBuilderWork extends SortBuilderCompress {
     /**
      * Set directory for temporary files (default ENV {@code java.io.tmpdir})
      *
      * @param tempDirectory temp Directory
-     * @return instance of {@link SortBuilder}
+     * @return instance of {@link SortBuilderCompress}
      */
-    SortBuilder withTempDirectory(File tempDirectory);
+    SortBuilderCompress withTempDirectory(File tempDirectory);
 
     /**
      * Set directory for temporary files (default ENV {@code java.io.tmpdir})
      *
      * @param tempDirectory temp Directory
-     * @return instance of {@link SortBuilder}
+     * @return instance of {@link SortBuilderCompress}
      */
-    SortBuilder withTempDirectory(String tempDirectory);
+    SortBuilderCompress withTempDirectory(String tempDirectory);
 }
@@ -22,15 +22,35 @@ import java.util.Comparator;
  * </p>
  * <p>
  * The file is split into small, sorted files.
- * Small files are taken in pairs and balanced, resulting in a sorted file with the same records as the pair.
- * This operation is repeated until a single ordered file is obtained.
- * The generated temporary files are deleted at each cycle.
+ * Chunks that are already in order are not sorted again, and consecutive ones are written to the same file.
+ * Small files are taken in groups (up to <i>fanIn</i> adjacent files, default 16) and merged in a single pass,
+ * resulting in a sorted file with the same records as the group.
+ * A group is merged as soon as its files are ready, the smallest group first, even while the file is still being split,
+ * until no more than <i>fanIn</i> files are left for the final merge.
+ * The merged temporary files are deleted as soon as they have been read.
+ * With {@link LayerPostSort#first() first}, {@link LayerPostSort#last() last},
+ * or a {@link LayerPostSort#sum(SumFields) sum} with an {@link SumFields#isAssociative() associative} rule,
+ * the records with equal keys are reduced when the chunks are saved and at each merge, as a combiner;
+ * an associative sum keeps, instead of the chunk, a table of the partial summaries by key,
+ * so that few distinct keys are summed in memory without sorting the records.
+ * The final merge is split by key ranges among the threads, each range written in its own part of the output file;
+ * records with the same key are always in the same range,
+ * a {@link LayerPostSort#sum(SumFields) sum}, a custom {@link LayerPostSort#reduce(RecordAccumulator) reduce}
+ * or already sorted input files keep the final merge on a single thread.
  * Free disk space of at least twice the size of the original file is required.
  * </p>
  * <h2>Option <a id="detail">detail</a></h2>
  * <dl>
  *     <dt><b>{@link LayerSortIn#sortIn(File) sortIn}</b></dt>
- *     <dd>Set the file to be sorted.</dd>
+ *     <dd>Set the file to be sorted; a {@link java.nio.file.Path Path}, an {@link java.io.InputStream InputStream},
+ *     a {@link java.io.Reader Reader} or an {@link Iterable}/{@link java.util.Iterator Iterator} of records
+ *     can be sorted as well, without writing them to a file.
+ *     Several files are sorted together, each one read by its own thread.</dd>
+ *
+ *     <dt><b>{@link LayerSortIn#mergeIn(File...) mergeIn}</b></dt>
+ *     <dd>Set the files to be merged, already sorted (as DFSORT {@code MERGE});
+ *     {@link LayerVerify#verify() verify} checks their order,
+ *     {@link LayerMerge#merge(Comparator) merge} sets the order, the following options are the ones of sort.</dd>
  *
  *     <dt>{@link LayerSkipRecord#skipRecord(int) skipRecord}</dt>
  *     <dd>Sets the number of records to skip from the beginning of the file.</dd>
@@ -50,6 +70,21 @@ import java.util.Comparator;
  *     <dt><b>{@link LayerSort#sort(Comparator) sort(Comparator)}</b></dt>
  *     <dd>Sort the records using the given comparator.</dd>
  *
+ *     <dt><b>{@link LayerSort#sort(SortFields) sort(SortFields)}</b></dt>
+ *     <dd>Sort the records using the given KEY-SORT fields (position, length, format, order), as DFSORT {@code SORT FIELDS}.</dd>
+ *
+ *     <dt><b>{@link LayerSort#sort(KeyExtractor) sort(KeyExtractor)}</b></dt>
+ *     <dd>Sort the records by a normalized binary key, computed once per record.</dd>
+ *
+ *     <dt><b>{@link LayerSort#groupBy(KeyExtractor) groupBy}</b></dt>
+ *     <dd>Groups the records by a normalized binary key, without sorting them, followed by
+ *     {@link LayerGroupBy#sum(SumFields) sum} or {@link LayerGroupBy#reduce(RecordAccumulator) reduce}:
+ *     the groups are collected in a hash table, spilled to partition files by key hash when it is full,
+ *     and written in no particular order.</dd>
+ *
+ *     <dt>{@link LayerPostSort#mergeWith(File) mergeWith}</dt>
+ *     <dd>Merges the sorted records with a file already sorted (incremental sort): only the input is sorted.</dd>
+ *
  *     <dt>{@link LayerPostSort#allDups() allDups}</dt>
  *     <dd>Limits the records selected to those with KEY-SORT values that occur more than once.</dd>
  *
@@ -74,11 +109,23 @@ import java.util.Comparator;
  *     <dt>{@link LayerPostSort#reduce(RecordAccumulator) reduce}</dt>
  *     <dd>Accumulates a group of records into a single record using a custom accumulation method. The first, firstDup, last, lastDup , noDups and sum options are special cases of reduce.</dd>
  *
+ *     <dt>{@link LayerOutRec#limit(int) limit}</dt>
+ *     <dd>Writes only the first records of the output (as DFSORT OUTFIL {@code STOPAFT}); without a reduction,
+ *     the first records in sort order are kept in a bounded heap while the input is read, with no sort files or merge.</dd>
+ *
  *     <dt>{@link LayerOutRec#outRec(RecordEditor) outRec}</dt>
  *     <dd>Edit the output record after sorting.</dd>
  *
  *     <dt><b>{@link LayerSortOut#sortOut(File) sortOut}</b></dt>
- *     <dd>Set the sorted file.</dd>
+ *     <dd>Set the sorted file; with {@link LayerSortOut#sortOut(File...) several files}, the records are partitioned
+ *     by key ranges, each file sorted and following the previous one, the partitions merged concurrently.</dd>
+ *
+ *     <dt><b>{@link LayerSortOut#sortOut(OutFil...) sortOut(OutFil...)}</b></dt>
+ *     <dd>Set several output files, each one with its own include condition and edit, as DFSORT {@code OUTFIL}:
+ *     a single sort writes all of them, each file by its own thread.</dd>
+ *
+ *     <dt><b>{@link LayerSortOut#sortOut() sortOut()}</b></dt>
+ *     <dd>Provides the sorted records as a {@link RecordIterator}, the last merge pass runs as they are requested.</dd>
  * </dl>
  */
 public class SortEngine {
@@ -96,6 +143,11 @@ public class SortEngine {
      *          .withCharset(StandardCharsets.US_ASCII)
      *          .withMaxThread(4)
      *          .withTempDirectory("/var/tmp/")
+     *          .withCompression(false)
+     *          .withFrontCoding(false)
+     *          .withParallelInput(false)
+     *          .withReplacementSelection(false)
+     *          .withFanIn(16)
      *          .build()
      *      .sortIn(source)
      *      .sort()
@@ -117,7 +169,7 @@ public class SortEngine {
      * @see SortEngine#builder()
      */
     public static LayerSortIn using(int maxNumRecord) {
-        return new PmSortEngine(maxNumRecord, null, 0,  null);
+        return new PmSortEngine(maxNumRecord, 0, null, 0,  null, false, false, false, false, 0);
     }
 
 }
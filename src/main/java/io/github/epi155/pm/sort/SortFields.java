@@ -0,0 +1,394 @@
+package io.github.epi155.pm.sort;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Declarative KEY-SORT, as the IBM DFSORT control statement {@code SORT FIELDS=(p,l,f,s,...)}
+ * <p>
+ * Example, {@code SORT FIELDS=(1,3,CH,A,4,5,ZD,D)}:
+ * </p>
+ * <pre>
+ * SortEngine.using(256)
+ *     .sortIn(source)
+ *     .sort(SortFields.of(1, 3, Format.CH, Order.A)
+ *                    .and(4, 5, Format.ZD, Order.D))
+ *     .sortOut(target);
+ * </pre>
+ * <p>
+ * The fields are compared in place, at fixed offsets of the record, without extracting substrings.
+ * As a {@link KeyExtractor}, the fields provide a fixed-width normalized key,
+ * so that the sort engine can sort the records in memory with a radix sort.
+ * Positions are 1-based, as in DFSORT; the characters beyond the end of a short record are taken as NUL (code 0).
+ * </p>
+ */
+public final class SortFields implements Comparator<String>, KeyExtractor {
+    private final List<Field> fields;
+
+    private SortFields(List<Field> fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * Creates a KEY-SORT with a single field
+     *
+     * @param p      position of the field (1-based)
+     * @param l      length of the field
+     * @param format format of the field
+     * @param order  sort order of the field
+     * @return {@link SortFields} instance
+     */
+    public static SortFields of(int p, int l, Format format, Order order) {
+        return new SortFields(Collections.singletonList(new Field(p, l, format, order)));
+    }
+
+    /**
+     * Adds a field to the KEY-SORT, used when the previous fields are equal
+     *
+     * @param p      position of the field (1-based)
+     * @param l      length of the field
+     * @param format format of the field
+     * @param order  sort order of the field
+     * @return new {@link SortFields} instance
+     */
+    public SortFields and(int p, int l, Format format, Order order) {
+        List<Field> more = new ArrayList<>(fields);
+        more.add(new Field(p, l, format, order));
+        return new SortFields(Collections.unmodifiableList(more));
+    }
+
+    @Override
+    public int compare(String o1, String o2) {
+        for (Field field : fields) {
+            int comp = field.compare(o1, o2);
+            if (comp != 0)
+                return comp;
+        }
+        return 0;
+    }
+
+    @Override
+    public byte[] keyOf(String line) {
+        int width = 0;
+        for (Field field : fields) {
+            width += field.width();
+        }
+        byte[] key = new byte[width];
+        int pos = 0;
+        for (Field field : fields) {
+            pos = field.normalize(line, key, pos);
+        }
+        return key;
+    }
+
+    /**
+     * Field format
+     */
+    public enum Format {
+        /**
+         * Character, compared by character value
+         */
+        CH,
+        /**
+         * Unsigned binary, compared by byte value
+         * (for files read with a charset that maps each byte to the character with the same value, as ISO-8859-1)
+         */
+        BI,
+        /**
+         * Signed zoned decimal, digits {@code 0-9} with the sign in the last character:
+         * <code>0-9 &#123; A-I</code> positive, <code>&#125; J-R p-y</code> negative
+         */
+        ZD,
+        /**
+         * Signed packed decimal, two digits per byte, the last half-byte is the sign ({@code D} or {@code B} negative)
+         * (for files read with a charset that maps each byte to the character with the same value, as ISO-8859-1)
+         */
+        PD,
+        /**
+         * Signed numeric with an optional leading floating sign, as {@code "  -123"} or {@code "+00045"};
+         * characters other than digits and sign are ignored
+         */
+        FS
+    }
+
+    /**
+     * Field sort order
+     */
+    public enum Order {
+        /**
+         * Ascending
+         */
+        A,
+        /**
+         * Descending
+         */
+        D
+    }
+
+    private static final class Field {
+        private final int offset;
+        private final int length;
+        private final Format format;
+        private final boolean descending;
+
+        private Field(int p, int l, Format format, Order order) {
+            if (p < 1 || l < 1)
+                throw new IllegalArgumentException("Invalid field position/length: " + p + "," + l);
+            if (format == null || order == null)
+                throw new IllegalArgumentException("Field format and order are required");
+            this.offset = p - 1;
+            this.length = l;
+            this.format = format;
+            this.descending = order == Order.D;
+        }
+
+        private int compare(String s1, String s2) {
+            int comp;
+            switch (format) {
+                case ZD:
+                    comp = compareZoned(s1, s2);
+                    break;
+                case PD:
+                    comp = comparePacked(s1, s2);
+                    break;
+                case FS:
+                    comp = compareFloatingSign(s1, s2);
+                    break;
+                case CH:
+                case BI:
+                default:
+                    comp = compareChars(s1, s2);
+                    break;
+            }
+            return descending ? -comp : comp;
+        }
+
+        /*
+         * normalized key: unsigned byte order equals the field order;
+         * numeric formats are a sign byte (0 negative, 1 zero, 2 positive) and the digits (9-complement if negative)
+         */
+
+        private int width() {
+            switch (format) {
+                case ZD:
+                case FS:
+                    return 1 + length;
+                case PD:
+                    return 2 * length;
+                case BI:
+                    return length;
+                case CH:
+                default:
+                    return 2 * length;
+            }
+        }
+
+        private int normalize(String s, byte[] key, int pos) {
+            int from = pos;
+            switch (format) {
+                case ZD: {
+                    int sign = zonedSign(s);
+                    key[pos++] = (byte) (sign + 1);
+                    for (int k = 0; k < length; k++) {
+                        int d = zonedDigit(charAt(s, k));
+                        key[pos++] = (byte) (sign < 0 ? 9 - d : d);
+                    }
+                    break;
+                }
+                case PD: {
+                    int sign = packedSign(s);
+                    key[pos++] = (byte) (sign + 1);
+                    for (int k = 0; k < 2 * length - 1; k++) {
+                        int d = packedDigit(s, k);
+                        key[pos++] = (byte) (sign < 0 ? 9 - d : d);
+                    }
+                    break;
+                }
+                case FS: {
+                    int sign = floatingSign(s);
+                    key[pos++] = (byte) (sign + 1);
+                    int k = firstSignificant(s);
+                    int end = pos + length;
+                    for (int pad = countDigits(s, k); pad < length; pad++) {
+                        key[pos++] = (byte) (sign < 0 ? 9 : 0);
+                    }
+                    for (; pos < end; k++) {
+                        char c = charAt(s, k);
+                        if (c >= '0' && c <= '9')
+                            key[pos++] = (byte) (sign < 0 ? '9' - c : c - '0');
+                    }
+                    break;
+                }
+                case BI:
+                    for (int k = 0; k < length; k++) {
+                        key[pos++] = (byte) charAt(s, k);
+                    }
+                    break;
+                case CH:
+                default:
+                    for (int k = 0; k < length; k++) {
+                        char c = charAt(s, k);
+                        key[pos++] = (byte) (c >>> 8);
+                        key[pos++] = (byte) c;
+                    }
+                    break;
+            }
+            if (descending) {
+                for (int k = from; k < pos; k++) {
+                    key[k] = (byte) ~key[k];
+                }
+            }
+            return pos;
+        }
+
+        private char charAt(String s, int k) {
+            int ix = offset + k;
+            return ix < s.length() ? s.charAt(ix) : '\u0000';
+        }
+
+        private int compareChars(String s1, String s2) {
+            for (int k = 0; k < length; k++) {
+                char c1 = charAt(s1, k);
+                char c2 = charAt(s2, k);
+                if (c1 != c2)
+                    return c1 < c2 ? -1 : 1;
+            }
+            return 0;
+        }
+
+        /*
+         * numeric formats: sign first (-0 == +0), then magnitude, reversed for negative numbers
+         */
+
+        private int compareZoned(String s1, String s2) {
+            int sign1 = zonedSign(s1);
+            int sign2 = zonedSign(s2);
+            if (sign1 != sign2)
+                return sign1 < sign2 ? -1 : 1;
+            for (int k = 0; k < length; k++) {
+                int d1 = zonedDigit(charAt(s1, k));
+                int d2 = zonedDigit(charAt(s2, k));
+                if (d1 != d2)
+                    return (d1 < d2) == (sign1 > 0) ? -1 : 1;
+            }
+            return 0;
+        }
+
+        private int zonedSign(String s) {
+            boolean zero = true;
+            for (int k = 0; k < length && zero; k++) {
+                zero = zonedDigit(charAt(s, k)) == 0;
+            }
+            if (zero)
+                return 0;
+            char c = charAt(s, length - 1);
+            return c == '}' || (c >= 'J' && c <= 'R') || (c >= 'p' && c <= 'y') ? -1 : 1;
+        }
+
+        private static int zonedDigit(char c) {
+            if (c == '{' || c == '}')
+                return 0;
+            if (c >= 'J' && c <= 'R')
+                return c - 'I';
+            return Math.min(c & 0x0F, 9);
+        }
+
+        private int comparePacked(String s1, String s2) {
+            int sign1 = packedSign(s1);
+            int sign2 = packedSign(s2);
+            if (sign1 != sign2)
+                return sign1 < sign2 ? -1 : 1;
+            int nmDigit = 2 * length - 1;
+            for (int k = 0; k < nmDigit; k++) {
+                int d1 = packedDigit(s1, k);
+                int d2 = packedDigit(s2, k);
+                if (d1 != d2)
+                    return (d1 < d2) == (sign1 > 0) ? -1 : 1;
+            }
+            return 0;
+        }
+
+        private int packedDigit(String s, int k) {
+            int b = charAt(s, k / 2) & 0xFF;
+            return (k & 1) == 0 ? b >>> 4 : b & 0x0F;
+        }
+
+        private int packedSign(String s) {
+            boolean zero = true;
+            for (int k = 0; k < 2 * length - 1 && zero; k++) {
+                zero = packedDigit(s, k) == 0;
+            }
+            if (zero)
+                return 0;
+            int nibble = charAt(s, length - 1) & 0x0F;
+            return nibble == 0x0D || nibble == 0x0B ? -1 : 1;
+        }
+
+        private int compareFloatingSign(String s1, String s2) {
+            int sign1 = floatingSign(s1);
+            int sign2 = floatingSign(s2);
+            if (sign1 != sign2)
+                return sign1 < sign2 ? -1 : 1;
+            if (sign1 == 0)
+                return 0;
+            int k1 = firstSignificant(s1);
+            int k2 = firstSignificant(s2);
+            int n1 = countDigits(s1, k1);
+            int n2 = countDigits(s2, k2);
+            int comp;
+            if (n1 != n2) {
+                comp = n1 < n2 ? -1 : 1;
+            } else {
+                comp = 0;
+                while (comp == 0 && k1 < length) {
+                    char c1 = charAt(s1, k1++);
+                    if (c1 < '0' || c1 > '9')
+                        continue;
+                    char c2;
+                    do {
+                        c2 = charAt(s2, k2++);
+                    } while (c2 < '0' || c2 > '9');
+                    if (c1 != c2)
+                        comp = c1 < c2 ? -1 : 1;
+                }
+            }
+            return sign1 > 0 ? comp : -comp;
+        }
+
+        private int floatingSign(String s) {
+            boolean negative = false;
+            boolean zero = true;
+            for (int k = 0; k < length; k++) {
+                char c = charAt(s, k);
+                if (c == '-')
+                    negative = true;
+                else if (c > '0' && c <= '9')
+                    zero = false;
+            }
+            if (zero)
+                return 0;
+            return negative ? -1 : 1;
+        }
+
+        private int firstSignificant(String s) {
+            for (int k = 0; k < length; k++) {
+                char c = charAt(s, k);
+                if (c > '0' && c <= '9')
+                    return k;
+            }
+            return length;
+        }
+
+        private int countDigits(String s, int from) {
+            int count = 0;
+            for (int k = from; k < length; k++) {
+                char c = charAt(s, k);
+                if (c >= '0' && c <= '9')
+                    count++;
+            }
+            return count;
+        }
+    }
+}
@@ -45,6 +45,11 @@ public abstract class SumFields {
             protected String getSummary(String line) {
                 return line;
             }
+
+            @Override
+            protected boolean isAssociative() {
+                return true;
+            }
         };
     }
 
@@ -100,4 +105,39 @@ public abstract class SumFields {
      * @return summary of the accumulated records
      */
     protected abstract String getSummary(String line);
+
+    /**
+     * Combines two partial summaries of records with the same KEY-SORT, for an associative rule only
+     * <p>
+     * A record on its own is a partial summary as well.
+     * The default implementation adds both to the reset accumulator;
+     * a rule can provide a faster one, that does not use the accumulator.
+     * </p>
+     *
+     * @param summary1 earlier partial summary
+     * @param summary2 later partial summary
+     * @return summary of the records of both
+     */
+    protected String combine(String summary1, String summary2) {
+        reset();
+        add(summary1);
+        add(summary2);
+        return getSummary(summary1);
+    }
+
+    /**
+     * Tells whether the summary records can be summed again
+     * <p>
+     * A rule is associative when adding the summaries of some groups of records with the same KEY-SORT
+     * gives the summary of all their records, as a sum of amounts does, and a count of records does not.
+     * The records of an associative rule are summed by key while the input is read, in a table of partial summaries,
+     * and again at each merge (see {@link #combine(String, String)}), so that the duplicate keys are not written many times.
+     * The rule methods are then called by several threads, one group at a time.
+     * </p>
+     *
+     * @return true if the rule is associative, false (default) if it is applied only by the final merge
+     */
+    protected boolean isAssociative() {
+        return false;
+    }
 }
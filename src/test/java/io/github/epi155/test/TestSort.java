@@ -1,21 +1,44 @@
 package io.github.epi155.test;
 
+import io.github.epi155.pm.sort.KeyExtractor;
+import io.github.epi155.pm.sort.LayerSortIn;
 import io.github.epi155.pm.sort.RecordEditor;
+import io.github.epi155.pm.sort.RecordIterator;
 import io.github.epi155.pm.sort.SortEngine;
 import io.github.epi155.pm.sort.SortException;
+import io.github.epi155.pm.sort.SortFields;
+import io.github.epi155.pm.sort.SortFields.Format;
+import io.github.epi155.pm.sort.SortFields.Order;
 import io.github.epi155.pm.sort.SortFilter;
+import io.github.epi155.pm.sort.SumFields;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class TestSort {
     @Test
@@ -339,4 +362,797 @@ public class TestSort {
             .sortOut(target);
         verifyOrder(target);
     }
+    @Test
+    public void testFanIn() throws IOException {
+        final File source = File.createTempFile("rand-", ".txt");
+        Random random = new Random();
+        try (BufferedWriter bw = Files.newBufferedWriter(Paths.get(source.getAbsolutePath()), StandardCharsets.UTF_8)) {
+            for (int k = 0; k < 1000; k++) {
+                int n = random.nextInt(50);
+                bw.write(String.format("%10d%10d", n, k));
+                bw.newLine();
+            }
+        }
+        final File target = File.createTempFile("sort-", ".txt");
+        SortEngine.builder()
+                .withMaxRecord(10)
+                .withMaxThread(3)
+                .withTempDirectory(System.getProperty("java.io.tmpdir"))
+                .withFanIn(3)
+                .build()
+            .sortIn(source)
+            .sort(Comparator.comparing(o -> o.substring(0, 10)))
+            .sortOut(target);
+        verifyOrder(target);    // stable sort: same key, ascending sequence
+        Assertions.assertEquals(1000, Files.readAllLines(target.toPath()).size());
+    }
+    @Test
+    public void testSpillError() throws IOException {
+        final File source = File.createTempFile("bef-", ".txt");
+        try (BufferedWriter bw = Files.newBufferedWriter(Paths.get(source.getAbsolutePath()), StandardCharsets.US_ASCII)) {
+            for (int k = 0; k < 200; k++) {
+                bw.write(String.format("%010d", 200 - k));     // not sorted, to be split
+                bw.newLine();
+            }
+        }
+        final File target = File.createTempFile("00-", ".txt");
+        // chunks are saved by the pool threads, the error must reach the caller
+        Assertions.assertThrows(SortException.class, () -> SortEngine.builder()
+                .withMaxRecord(20)
+                .withMaxThread(2)
+                .withTempDirectory("/no-such-directory")
+                .build()
+                .sortIn(source)
+                .sort()
+                .sortOut(target));
+    }
+    @Test
+    public void testMaxMemory() throws IOException {
+        final File source = File.createTempFile("rand-", ".txt");
+        Random random = new Random();
+        try (BufferedWriter bw = Files.newBufferedWriter(Paths.get(source.getAbsolutePath()), StandardCharsets.UTF_8)) {
+            for (int k = 0; k < 1000; k++) {
+                int n = random.nextInt(100_000);
+                // mix of short and long records
+                bw.write(String.format(k % 10 == 0 ? "%-400d" : "%10d", n));
+                bw.newLine();
+            }
+        }
+        final File target = File.createTempFile("sort-", ".txt");
+        SortEngine.builder()
+                .withMaxMemory(32 * 1024)
+                .withMaxThread(2)
+                .build()
+            .sortIn(source)
+            .sort()
+            .sortOut(target);
+        verifyOrder(target);
+        Assertions.assertEquals(1000, Files.readAllLines(target.toPath()).size());
+    }
+    @Test
+    public void testChunkFailFast() throws IOException {
+        // not a directory: the chunks cannot be saved
+        final File swap = File.createTempFile("swap-", ".tmp");
+        final int total = 1_000_000;
+        final Random random = new Random();
+        final int[] read = {0};
+        Iterator<String> records = new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return read[0] < total;
+            }
+
+            @Override
+            public String next() {
+                read[0]++;
+                return String.format("%010d", random.nextInt(1_000_000));
+            }
+        };
+        Assertions.assertThrows(SortException.class, () -> SortEngine.builder()
+                .withMaxRecord(16)
+                .withMaxThread(2)
+                .withTempDirectory(swap)
+                .build()
+                .sortIn(records)
+                .sort()
+                .sortOut(File.createTempFile("sort-", ".txt")));
+        // the failed chunk stops the split, the input is not read to the end
+        Assertions.assertTrue(read[0] < total);
+    }
+    @Test
+    public void testReplacementSelection() throws IOException {
+        final File source = File.createTempFile("rand-", ".txt");
+        Random random = new Random();
+        try (BufferedWriter bw = Files.newBufferedWriter(Paths.get(source.getAbsolutePath()), StandardCharsets.UTF_8)) {
+            for (int k = 0; k < 1000; k++) {
+                int n = random.nextInt(50);
+                bw.write(String.format("%10d%10d", n, k));
+                bw.newLine();
+            }
+        }
+        final File target = File.createTempFile("sort-", ".txt");
+        SortEngine.builder()
+                .withMaxRecord(16)
+                .withTempDirectory(System.getProperty("java.io.tmpdir"))
+                .withReplacementSelection(true)
+                .withFanIn(4)
+                .build()
+            .sortIn(source)
+            .sort(Comparator.comparing(o -> o.substring(0, 10)))
+            .sortOut(target);
+        verifyOrder(target);    // stable sort: same key, ascending sequence
+        Assertions.assertEquals(1000, Files.readAllLines(target.toPath()).size());
+
+        // almost sorted input: single sorted file
+        try (BufferedWriter bw = Files.newBufferedWriter(Paths.get(source.getAbsolutePath()), StandardCharsets.UTF_8)) {
+            for (int k = 0; k < 1000; k++) {
+                bw.write(String.format("%10d", k % 10 == 0 ? k + 5 : k));
+                bw.newLine();
+            }
+        }
+        SortEngine.builder()
+                .withMaxRecord(16)
+                .withTempDirectory(System.getProperty("java.io.tmpdir"))
+                .withReplacementSelection(true)
+                .build()
+            .sortIn(source)
+            .sort()
+            .first()
+            .sortOut(target);
+        verifyOrder(target);
+        Assertions.assertEquals(1000 - 100, Files.readAllLines(target.toPath()).size());
+
+        // fewer records than the heap: a single chunk, equal keys in input order
+        List<String> lines = new ArrayList<>();
+        for (int k = 0; k < 200; k++) {
+            lines.add((char) ('A' + random.nextInt(5)) + String.format("%05d", k));
+        }
+        Files.write(source.toPath(), lines, StandardCharsets.UTF_8);
+        List<String> sorted = new ArrayList<>(lines);
+        sorted.sort(Comparator.comparing(o -> o.substring(0, 1)));
+        List<String> firsts = new ArrayList<>();
+        for (String line : sorted) {
+            if (firsts.isEmpty() || firsts.get(firsts.size() - 1).charAt(0) != line.charAt(0))
+                firsts.add(line);
+        }
+        SortEngine.builder()
+                .withMaxRecord(1000)
+                .withReplacementSelection(true)
+                .build()
+            .sortIn(source)
+            .sort(Comparator.comparing(o -> o.substring(0, 1)))
+            .sortOut(target);
+        Assertions.assertEquals(sorted, Files.readAllLines(target.toPath()));
+        SortEngine.builder()
+                .withMaxRecord(1000)
+                .withReplacementSelection(true)
+                .build()
+            .sortIn(source)
+            .sort(SortFields.of(1, 1, Format.CH, Order.A))
+            .first()
+            .sortOut(target);
+        Assertions.assertEquals(firsts, Files.readAllLines(target.toPath()));
+    }
+    @Test
+    public void testRunFormat() throws IOException {
+        final File source = File.createTempFile("rand-", ".txt");
+        Random random = new Random();
+        List<String> lines = new ArrayList<>();
+        String[] tails = { "", "\u00e8\u00e0", "\u20ac\u03a9", "\ud83d\ude00", "" };
+        for (int k = 0; k < 1000; k++) {
+            lines.add(String.format("%10d", random.nextInt(100_000)) + tails[k % tails.length]);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int k = 0; k < 100_000; k++) {
+            sb.append((char) ('a' + k % 26));
+        }
+        lines.add(sb.toString());   // larger than a block
+        Files.write(source.toPath(), lines, StandardCharsets.UTF_8);
+        final File target = File.createTempFile("sort-", ".txt");
+        SortEngine.builder()
+                .withMaxRecord(64)
+                .withMaxThread(2)
+                .build()
+            .sortIn(source)
+            .sort()
+            .sortOut(target);
+        Collections.sort(lines);
+        Assertions.assertEquals(lines, Files.readAllLines(target.toPath(), StandardCharsets.UTF_8));
+    }
+    @Test
+    public void testCompression() throws IOException {
+        final File source = File.createTempFile("rand-", ".txt");
+        Random random = new Random();
+        List<String> lines = new ArrayList<>();
+        for (int k = 0; k < 5000; k++) {
+            StringBuilder sb = new StringBuilder(String.format("%10d", random.nextInt(100_000)));
+            if (k % 2 == 0) {
+                // hardly compressible tail
+                for (int j = 0; j < 40; j++) {
+                    sb.append((char) (0x4E00 + random.nextInt(0x5000)));
+                }
+            }
+            lines.add(sb.toString());
+        }
+        Files.write(source.toPath(), lines, StandardCharsets.UTF_8);
+        final File target = File.createTempFile("sort-", ".txt");
+        SortEngine.builder()
+                .withMaxRecord(500)
+                .withMaxThread(2)
+                .withTempDirectory(System.getProperty("java.io.tmpdir"))
+                .withCompression(true)
+                .withFanIn(4)
+                .build()
+            .sortIn(source)
+            .sort()
+            .sortOut(target);
+        Collections.sort(lines);
+        Assertions.assertEquals(lines, Files.readAllLines(target.toPath(), StandardCharsets.UTF_8));
+    }
+    @Test
+    public void testFrontCoding() throws IOException {
+        final File source = File.createTempFile("rand-", ".txt");
+        Random random = new Random();
+        List<String> lines = new ArrayList<>();
+        for (int k = 0; k < 5000; k++) {
+            String header = k % 3 == 0 ? "HEADER-\u20ac-" : "HEADER-";
+            lines.add(header + String.format("%06d", random.nextInt(10_000)) + (k % 7 == 0 ? "\u03a9" : ""));
+        }
+        lines.add("");
+        Files.write(source.toPath(), lines, StandardCharsets.UTF_8);
+        final File target = File.createTempFile("sort-", ".txt");
+        SortEngine.builder()
+                .withMaxRecord(300)
+                .withMaxThread(2)
+                .withTempDirectory(System.getProperty("java.io.tmpdir"))
+                .withCompression(true)
+                .withFrontCoding(true)
+                .withFanIn(3)
+                .build()
+            .sortIn(source)
+            .sort()
+            .sortOut(target);
+        Collections.sort(lines);
+        Assertions.assertEquals(lines, Files.readAllLines(target.toPath(), StandardCharsets.UTF_8));
+    }
+    @Test
+    public void testKeyExtractor() throws IOException {
+        final File source = File.createTempFile("rand-", ".txt");
+        Random random = new Random();
+        try (BufferedWriter bw = Files.newBufferedWriter(Paths.get(source.getAbsolutePath()), StandardCharsets.UTF_8)) {
+            for (int k = 0; k < 1000; k++) {
+                int n = random.nextInt(100) - 50;
+                bw.write(String.format("%10d%10d", n, k));
+                bw.newLine();
+            }
+        }
+        // signed int, big-endian with the sign bit flipped: unsigned byte order is numeric order
+        final KeyExtractor numKey = line -> {
+            int n = Integer.parseInt(line.substring(0, 10).trim()) ^ 0x80000000;
+            return new byte[]{(byte) (n >>> 24), (byte) (n >>> 16), (byte) (n >>> 8), (byte) n};
+        };
+        final File target = File.createTempFile("sort-", ".txt");
+        SortEngine.builder()
+                .withMaxRecord(64)
+                .withMaxThread(2)
+                .build()
+            .sortIn(source)
+            .sort(numKey)
+            .sortOut(target);
+        List<String> sorted = Files.readAllLines(target.toPath());
+        Assertions.assertEquals(1000, sorted.size());
+        for (int k = 1; k < sorted.size(); k++) {
+            int n0 = Integer.parseInt(sorted.get(k - 1).substring(0, 10).trim());
+            int n1 = Integer.parseInt(sorted.get(k).substring(0, 10).trim());
+            int s0 = Integer.parseInt(sorted.get(k - 1).substring(10).trim());
+            int s1 = Integer.parseInt(sorted.get(k).substring(10).trim());
+            Assertions.assertTrue(n0 < n1 || (n0 == n1 && s0 < s1), "error: \n" + sorted.get(k - 1) + "\n" + sorted.get(k));
+        }
+
+        SortEngine.builder()
+                .withMaxRecord(64)
+                .build()
+            .sortIn(source)
+            .sort(numKey)
+            .first()
+            .sortOut(target);
+        List<String> firsts = Files.readAllLines(target.toPath());
+        for (int k = 1; k < firsts.size(); k++) {
+            Assertions.assertTrue(numKey.keyOf(firsts.get(k - 1))[3] != numKey.keyOf(firsts.get(k))[3]);
+        }
+
+        // the key is extracted once per record, the groups are found on the carried keys
+        final AtomicInteger extracted = new AtomicInteger();
+        final KeyExtractor countKey = line -> {
+            extracted.incrementAndGet();
+            return numKey.keyOf(line);
+        };
+        for (int maxRecord : new int[]{64, 2000}) {
+            extracted.set(0);
+            SortEngine.using(maxRecord)
+                .sortIn(source)
+                .sort(countKey)
+                .first()
+                .sortOut(target);
+            Assertions.assertEquals(firsts, Files.readAllLines(target.toPath()));
+            Assertions.assertEquals(1000, extracted.get());
+            extracted.set(0);
+            SortEngine.using(maxRecord)
+                .sortIn(source)
+                .sort(countKey)
+                .noDups()
+                .sortOut(target);
+            Assertions.assertEquals(1000, extracted.get());
+        }
+    }
+    @Test
+    public void testParallelInput() throws IOException {
+        final File source = File.createTempFile("rand-", ".txt");
+        Random random = new Random();
+        try (BufferedWriter bw = Files.newBufferedWriter(Paths.get(source.getAbsolutePath()), StandardCharsets.UTF_8)) {
+            for (int k = 0; k < 600_000; k++) {
+                if (k == 300_000) {
+                    bw.write("\u001a");    // end-of-file mark inside a slice
+                    bw.newLine();
+                }
+                int n = random.nextInt(5000);
+                bw.write(String.format("%10d%10d", n, k));
+                bw.newLine();
+            }
+        }
+        final File target = File.createTempFile("sort-", ".txt");
+        final File expected = File.createTempFile("sort-", ".txt");
+        for (boolean parallel : new boolean[]{ true, false }) {
+            SortEngine.builder()
+                    .withMaxRecord(20_000)
+                    .withMaxThread(4)
+                    .withParallelInput(parallel)
+                    .build()
+                .sortIn(source)
+                .include(s -> s.charAt(19) != '7')
+                .inRec(s -> s.substring(0, 10) + "-" + s.substring(10))
+                .sort(Comparator.comparing(o -> o.substring(0, 10)))
+                .sortOut(parallel ? target : expected);
+        }
+        List<String> sorted = Files.readAllLines(target.toPath());
+        Assertions.assertEquals(300_000 - 30_000, sorted.size());
+        Assertions.assertEquals(Files.readAllLines(expected.toPath()), sorted);
+    }
+    @Test
+    public void testSortInSources() throws IOException {
+        List<String> lines = new ArrayList<>();
+        Random random = new Random();
+        for (int k = 0; k < 1000; k++) {
+            lines.add(String.format("%10d%10d", random.nextInt(50), k));
+        }
+        final File target = File.createTempFile("sort-", ".txt");
+        final LayerSortIn engine = SortEngine.using(64);
+
+        engine.sortIn(lines).sort(Comparator.comparing(o -> o.substring(0, 10))).sortOut(target);
+        verifyOrder(target);
+        final List<String> expected = Files.readAllLines(target.toPath());
+        Assertions.assertEquals(1000, expected.size());
+
+        engine.sortIn(lines.iterator()).sort(Comparator.comparing(o -> o.substring(0, 10))).sortOut(target);
+        Assertions.assertEquals(expected, Files.readAllLines(target.toPath()));
+
+        engine.sortIn(new StringReader(String.join("\n", lines))).sort(Comparator.comparing(o -> o.substring(0, 10))).sortOut(target);
+        Assertions.assertEquals(expected, Files.readAllLines(target.toPath()));
+
+        final File source = File.createTempFile("rand-", ".txt.gz");
+        try (Writer wr = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(source)), StandardCharsets.UTF_8)) {
+            wr.write(String.join("\n", lines));
+        }
+        try (InputStream is = new GZIPInputStream(new FileInputStream(source))) {
+            engine.sortIn(is).sort(Comparator.comparing(o -> o.substring(0, 10))).sortOut(target);
+        }
+        Assertions.assertEquals(expected, Files.readAllLines(target.toPath()));
+
+        Files.write(source.toPath(), lines);
+        engine.sortIn(source.toPath()).sort(Comparator.comparing(o -> o.substring(0, 10))).sortOut(target);
+        Assertions.assertEquals(expected, Files.readAllLines(target.toPath()));
+    }
+    @Test
+    public void testSortOutIterator() throws IOException {
+        final File source = File.createTempFile("rand-", ".txt");
+        Random random = new Random();
+        try (BufferedWriter bw = Files.newBufferedWriter(Paths.get(source.getAbsolutePath()), StandardCharsets.UTF_8)) {
+            for (int k = 0; k < 1000; k++) {
+                int n = random.nextInt(50);
+                bw.write(String.format("%10d%10d", n, k));
+                bw.newLine();
+            }
+        }
+        final File target = File.createTempFile("sort-", ".txt");
+        for (int maxRecord : new int[]{ 16, 2000 }) {   // merged files, single chunk in memory
+            SortEngine.using(maxRecord)
+                .sortIn(source)
+                .sort(Comparator.comparing(o -> o.substring(0, 10)))
+                .first()
+                .outRec(s -> s.substring(0, 10))
+                .sortOut(target);
+            List<String> pulled = new ArrayList<>();
+            try (RecordIterator it = SortEngine.using(maxRecord)
+                    .sortIn(source)
+                    .sort(Comparator.comparing(o -> o.substring(0, 10)))
+                    .first()
+                    .outRec(s -> s.substring(0, 10))
+                    .sortOut()) {
+                while (it.hasNext()) {
+                    pulled.add(it.next());
+                }
+            }
+            Assertions.assertEquals(Files.readAllLines(target.toPath()), pulled);
+        }
+
+        // closed before the end
+        final File swap = Files.createTempDirectory("swap-").toFile();
+        try (RecordIterator it = SortEngine.builder()
+                .withMaxRecord(16)
+                .withTempDirectory(swap)
+                .build()
+                .sortIn(source)
+                .sort()
+                .sortOut()) {
+            Assertions.assertTrue(it.hasNext());
+            it.next();
+        }
+        Assertions.assertEquals(0, swap.list().length);
+    }
+    @Test
+    public void testMultipleInput() throws IOException {
+        Random random = new Random();
+        File[] sources = new File[5];
+        List<String> records = new ArrayList<>();
+        for (int f = 0; f < sources.length; f++) {
+            sources[f] = File.createTempFile("rand-", ".txt");
+            try (BufferedWriter bw = Files.newBufferedWriter(sources[f].toPath(), StandardCharsets.UTF_8)) {
+                bw.write("HEADER " + f);
+                bw.newLine();
+                for (int k = 0; k < 1000; k++) {
+                    String line = String.format("%10d%10d", random.nextInt(50), 1000 * f + k);
+                    bw.write(line);
+                    bw.newLine();
+                    records.add(line);
+                }
+            }
+        }
+        List<String> expected = new ArrayList<>(records);
+        expected.sort(Comparator.comparing(o -> o.substring(0, 10)));   // stable: file order
+        final File target = File.createTempFile("sort-", ".txt");
+        SortEngine.builder()
+                .withMaxRecord(64)
+                .withMaxThread(3)
+                .build()
+            .sortIn(sources)
+            .skipRecord(1)
+            .sort(Comparator.comparing(o -> o.substring(0, 10)))
+            .sortOut(target);
+        Assertions.assertEquals(expected, Files.readAllLines(target.toPath()));
+
+        // stopAfter on the whole input: files read in order
+        List<Path> paths = new ArrayList<>();
+        for (File source : sources) {
+            paths.add(source.toPath());
+        }
+        SortEngine.using(64)
+            .sortIn(paths)
+            .skipRecord(1)
+            .stopAfter(2500)
+            .sort(Comparator.comparing(o -> o.substring(0, 10)))
+            .sortOut(target);
+        expected = new ArrayList<>(records.subList(0, 2500));
+        expected.sort(Comparator.comparing(o -> o.substring(0, 10)));
+        Assertions.assertEquals(expected, Files.readAllLines(target.toPath()));
+    }
+    @Test
+    public void testMerge() throws IOException {
+        Random random = new Random();
+        File[] sources = new File[10];
+        List<String> records = new ArrayList<>();
+        for (int f = 0; f < sources.length; f++) {
+            List<String> lines = new ArrayList<>();
+            for (int k = 0; k < 500; k++) {
+                lines.add(String.format("%10d%10d", random.nextInt(100), 1000 * f + k));
+            }
+            lines.sort(Comparator.comparing(o -> o.substring(0, 10)));
+            sources[f] = File.createTempFile("sorted-", ".txt");
+            Files.write(sources[f].toPath(), lines);
+            records.addAll(lines);
+        }
+        List<String> expected = new ArrayList<>(records);
+        expected.sort(Comparator.comparing(o -> o.substring(0, 10)));   // stable: file order
+        final File target = File.createTempFile("merge-", ".txt");
+        SortEngine.builder()
+                .withFanIn(3)
+                .build()
+            .mergeIn(sources)
+            .verify()
+            .merge(Comparator.comparing(o -> o.substring(0, 10)))
+            .sortOut(target);
+        Assertions.assertEquals(expected, Files.readAllLines(target.toPath()));
+
+        SortEngine.using(64)
+            .mergeIn(sources)
+            .merge(Comparator.comparing(o -> o.substring(0, 10)))
+            .first()
+            .outRec(o -> o.substring(0, 10))
+            .sortOut(target);
+        List<String> firsts = Files.readAllLines(target.toPath());
+        Assertions.assertEquals(100, firsts.size());
+        verifyOrder(target);
+
+        // verify: unsorted input
+        Collections.reverse(records);
+        Files.write(sources[3].toPath(), records.subList(0, 100));
+        Assertions.assertThrows(SortException.class, () -> SortEngine.using(64)
+            .mergeIn(sources)
+            .verify()
+            .merge(Comparator.comparing(o -> o.substring(0, 10)))
+            .sortOut(target));
+    }
+    @Test
+    public void testMergeWith() throws IOException {
+        Random random = new Random();
+        TreeMap<String, String> upsert = new TreeMap<>();
+        List<String> master = new ArrayList<>();
+        for (int k = 0; k < 5000; k++) {
+            String key = String.format("%010d", 2 * k);
+            master.add(key + "MASTER");
+            upsert.put(key, key + "MASTER");
+        }
+        final File masterFile = File.createTempFile("master-", ".txt");
+        Files.write(masterFile.toPath(), master);
+        List<String> delta = new ArrayList<>();
+        for (int k = 0; k < 300; k++) {
+            String key = String.format("%010d", random.nextInt(10000));
+            delta.add(key + "DELTA" + k);
+            upsert.put(key, key + "DELTA" + k);
+        }
+        final File deltaFile = File.createTempFile("delta-", ".txt");
+        Files.write(deltaFile.toPath(), delta);
+        final File target = File.createTempFile("sort-", ".txt");
+        for (int maxRecord : new int[]{ 32, 1000 }) {   // merged files, single chunk in memory
+            SortEngine.using(maxRecord)
+                .sortIn(deltaFile)
+                .sort(SortFields.of(1, 10, Format.CH, Order.A))
+                .mergeWith(masterFile)
+                .last()
+                .sortOut(target);
+            Assertions.assertEquals(new ArrayList<>(upsert.values()), Files.readAllLines(target.toPath()));
+        }
+    }
+    @Test
+    public void testNaturalRuns() throws IOException {
+        Random random = new Random();
+        final File source = File.createTempFile("sorted-", ".txt");
+        List<String> lines = new ArrayList<>();
+        for (int k = 0; k < 5000; k++) {
+            // sorted, with a few stretches out of order and repeated keys
+            int n = k % 1000 == 500 ? random.nextInt(5000) : k / 3;
+            lines.add(String.format("%10d%10d", n, k));
+        }
+        Files.write(source.toPath(), lines);
+        List<String> expected = new ArrayList<>(lines);
+        expected.sort(Comparator.comparing(o -> o.substring(0, 10)));
+        final File target = File.createTempFile("sort-", ".txt");
+        SortEngine.using(100)
+            .sortIn(source)
+            .sort(Comparator.comparing(o -> o.substring(0, 10)))
+            .sortOut(target);
+        Assertions.assertEquals(expected, Files.readAllLines(target.toPath()));
+
+        // fully sorted: a single natural run
+        Files.write(source.toPath(), expected);
+        SortEngine.using(100)
+            .sortIn(source)
+            .sort(Comparator.comparing(o -> o.substring(0, 10)))
+            .first()
+            .sortOut(target);
+        long distinct = expected.stream().map(o -> o.substring(0, 10)).distinct().count();
+        Assertions.assertEquals(distinct, Files.readAllLines(target.toPath()).size());
+        verifyOrder(target);
+
+        // fully sorted: written straight to the output, also when it is the input itself
+        SortEngine.using(100)
+            .sortIn(source)
+            .sort(Comparator.comparing(o -> o.substring(0, 10)))
+            .sortOut(target);
+        Assertions.assertEquals(expected, Files.readAllLines(target.toPath()));
+        SortEngine.using(100)
+            .sortIn(source)
+            .sort(Comparator.comparing(o -> o.substring(0, 10)))
+            .sortOut(source);
+        Assertions.assertEquals(expected, Files.readAllLines(source.toPath()));
+    }
+    @Test
+    public void testMergeScheduling() throws IOException {
+        Random random = new Random();
+        final File source = File.createTempFile("rand-", ".txt");
+        List<String> lines = new ArrayList<>();
+        for (int k = 0; k < 3000; k++) {
+            // runs of very different sizes: random chunks and long sorted stretches
+            int n = k % 1000 < 600 ? k / 7 : random.nextInt(400);
+            lines.add(String.format("%10d%10d", n, k));
+        }
+        Files.write(source.toPath(), lines);
+        List<String> expected = new ArrayList<>(lines);
+        expected.sort(Comparator.comparing(o -> o.substring(0, 10)));
+        final File target = File.createTempFile("sort-", ".txt");
+        SortEngine.builder()
+                .withMaxRecord(25)
+                .withMaxThread(4)
+                .withFanIn(3)
+                .build()
+            .sortIn(source)
+            .sort(Comparator.comparing(o -> o.substring(0, 10)))
+            .sortOut(target);
+        Assertions.assertEquals(expected, Files.readAllLines(target.toPath()));     // stable sort
+
+        // merge errors reach the caller
+        List<File> parts = new ArrayList<>();
+        for (int k = 0; k < 8; k++) {
+            File part = File.createTempFile("part-", ".txt");
+            Files.write(part.toPath(), Arrays.asList("a", k == 5 ? "0" : "b", "c"));
+            parts.add(part);
+        }
+        Assertions.assertThrows(SortException.class, () -> SortEngine.builder()
+                .withMaxRecord(25)
+                .withFanIn(2)
+                .build()
+            .mergeIn(parts.toArray(new File[0]))
+            .verify()
+            .merge()
+            .sortOut(target));
+    }
+    @Test
+    public void testParallelFinalMerge() throws IOException {
+        Random random = new Random();
+        final File source = File.createTempFile("rand-", ".txt");
+        List<String> lines = new ArrayList<>();
+        for (int k = 0; k < 50_000; k++) {
+            lines.add(String.format("%10d%10d", random.nextInt(5000), k));
+        }
+        Files.write(source.toPath(), lines);
+        Comparator<String> byKey = Comparator.comparing(o -> o.substring(0, 10));
+        List<String> expected = new ArrayList<>(lines);
+        expected.sort(byKey);
+        final File target = File.createTempFile("sort-", ".txt");
+        // runs of several blocks: the final merge is split into key ranges
+        SortEngine.builder()
+                .withMaxRecord(10_000)
+                .withMaxThread(4)
+                .build()
+            .sortIn(source)
+            .sort(byKey)
+            .sortOut(target);
+        Assertions.assertEquals(expected, Files.readAllLines(target.toPath()));     // stable sort
+
+        // equal keys never cross a range boundary
+        SortEngine.builder()
+                .withMaxRecord(10_000)
+                .withMaxThread(4)
+                .withCompression(true)
+                .withFrontCoding(true)
+                .build()
+            .sortIn(source)
+            .sort(byKey)
+            .first()
+            .sortOut(target);
+        List<String> firsts = new ArrayList<>();
+        String last = null;
+        for (String line : expected) {
+            if (last == null || byKey.compare(last, line) != 0)
+                firsts.add(line);
+            last = line;
+        }
+        Assertions.assertEquals(firsts, Files.readAllLines(target.toPath()));
+    }
+    @Test
+    public void testPartitionedOutput() throws IOException {
+        Random random = new Random();
+        final File source = File.createTempFile("rand-", ".txt");
+        List<String> lines = new ArrayList<>();
+        for (int k = 0; k < 20_000; k++) {
+            lines.add(String.format("%10d%10d", random.nextInt(1000), k));
+        }
+        Files.write(source.toPath(), lines);
+        Comparator<String> byKey = Comparator.comparing(o -> o.substring(0, 10));
+        List<String> expected = new ArrayList<>(lines);
+        expected.sort(byKey);
+        File[] partitions = new File[4];
+        for (int k = 0; k < partitions.length; k++) {
+            partitions[k] = File.createTempFile("part-", ".txt");
+        }
+        SortEngine.builder()
+                .withMaxRecord(3000)
+                .withMaxThread(3)
+                .build()
+            .sortIn(source)
+            .sort(byKey)
+            .sortOut(partitions);
+        List<String> all = new ArrayList<>();
+        String lastKey = null;
+        for (File partition : partitions) {
+            List<String> part = Files.readAllLines(partition.toPath());
+            Assertions.assertFalse(part.isEmpty());
+            // equal keys never cross a partition boundary
+            Assertions.assertNotEquals(lastKey, part.get(0).substring(0, 10));
+            lastKey = part.get(part.size() - 1).substring(0, 10);
+            all.addAll(part);
+        }
+        Assertions.assertEquals(expected, all);     // stable sort
+
+        // a single accumulator: the reduced records are routed to their partition
+        TreeMap<String, Integer> counts = new TreeMap<>();
+        for (String line : lines) {
+            counts.merge(line.substring(0, 10), 1, Integer::sum);
+        }
+        SortEngine.using(3000)
+            .sortIn(source)
+            .sort(byKey)
+            .sum(new SumFields() {
+                private int count;
+
+                @Override
+                protected void reset() {
+                    count = 0;
+                }
+
+                @Override
+                protected void add(String line) {
+                    count++;
+                }
+
+                @Override
+                protected String getSummary(String line) {
+                    return line.substring(0, 10) + String.format("%05d", count);
+                }
+            })
+            .sortOut(partitions);
+        all.clear();
+        for (File partition : partitions) {
+            List<String> part = Files.readAllLines(partition.toPath());
+            Assertions.assertFalse(part.isEmpty());
+            all.addAll(part);
+        }
+        List<String> sums = new ArrayList<>();
+        counts.forEach((key, count) -> sums.add(key + String.format("%05d", count)));
+        Assertions.assertEquals(sums, all);
+
+        // sorted files without block index: sampled at a few offsets, merged once
+        File[] sorted = new File[2];
+        List<String> merged = new ArrayList<>();
+        for (int k = 0; k < sorted.length; k++) {
+            List<String> part = new ArrayList<>(lines.subList(k * 10_000, (k + 1) * 10_000));
+            part.sort(byKey);
+            sorted[k] = File.createTempFile("sorted-", ".txt");
+            Files.write(sorted[k].toPath(), part);
+            merged.addAll(part);
+        }
+        merged.sort(byKey);
+        SortEngine.builder()
+                .withMaxThread(3)
+                .build()
+            .mergeIn(sorted)
+            .merge(byKey)
+            .sortOut(partitions);
+        all.clear();
+        for (File partition : partitions) {
+            List<String> part = Files.readAllLines(partition.toPath());
+            Assertions.assertFalse(part.isEmpty());
+            all.addAll(part);
+        }
+        Assertions.assertEquals(merged, all);
+
+        // few distinct keys: the last partitions are empty
+        Files.write(source.toPath(), Arrays.asList("b", "a", "b", "a"));
+        SortEngine.using(3000)
+            .sortIn(source)
+            .sort()
+            .sortOut(partitions);
+        Assertions.assertEquals(Arrays.asList("a", "a"), Files.readAllLines(partitions[0].toPath()));
+        Assertions.assertEquals(Arrays.asList("b", "b"), Files.readAllLines(partitions[1].toPath()));
+        Assertions.assertTrue(Files.readAllLines(partitions[3].toPath()).isEmpty());
+    }
 }
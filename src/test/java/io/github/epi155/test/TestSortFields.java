@@ -0,0 +1,156 @@
+package io.github.epi155.test;
+
+import io.github.epi155.pm.sort.SortEngine;
+import io.github.epi155.pm.sort.SortFields;
+import io.github.epi155.pm.sort.SortFields.Format;
+import io.github.epi155.pm.sort.SortFields.Order;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class TestSortFields {
+    private static List<String> sort(List<String> lines, SortFields fields) throws IOException {
+        final File source = File.createTempFile("flds-", ".txt");
+        final File target = File.createTempFile("sort-", ".txt");
+        Files.write(source.toPath(), lines, StandardCharsets.ISO_8859_1);
+        SortEngine.builder()
+                .withMaxRecord(2)
+                .withCharset(StandardCharsets.ISO_8859_1)
+                .build()
+            .sortIn(source)
+            .sort(fields)
+            .sortOut(target);
+        return Files.readAllLines(target.toPath(), StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    public void testCharacter() throws IOException {
+        List<String> lines = Arrays.asList(
+            "BBB002",
+            "AAA001",
+            "BBB001",
+            "AAA002",
+            "AA");
+        List<String> sorted = sort(lines, SortFields.of(1, 3, Format.CH, Order.A).and(4, 3, Format.CH, Order.D));
+        Assertions.assertEquals(Arrays.asList(
+            "AA",
+            "AAA002",
+            "AAA001",
+            "BBB002",
+            "BBB001"), sorted);
+    }
+
+    @Test
+    public void testZoned() throws IOException {
+        List<String> lines = Arrays.asList(
+            "X0012}",   // -120
+            "X0012{",   // +120
+            "X00005",   // +5
+            "X0000J",   // -1
+            "X0000}",   // -0
+            "X0001B");  // +12
+        List<String> sorted = sort(lines, SortFields.of(2, 5, Format.ZD, Order.A));
+        Assertions.assertEquals(Arrays.asList(
+            "X0012}",
+            "X0000J",
+            "X0000}",
+            "X00005",
+            "X0001B",
+            "X0012{"), sorted);
+    }
+
+    @Test
+    public void testPacked() throws IOException {
+        List<String> lines = Arrays.asList(
+            "\u0012=",    // -123
+            "\u0000\\",    // +5
+            "\u0012<",    // +123
+            "\u0000\u001D",    // -1
+            "\u0000\u000C");   // 0
+        List<String> sorted = sort(lines, SortFields.of(1, 2, Format.PD, Order.D));
+        Assertions.assertEquals(Arrays.asList(
+            "\u0012<",
+            "\u0000\\",
+            "\u0000\u000C",
+            "\u0000\u001D",
+            "\u0012="), sorted);
+    }
+
+    @Test
+    public void testFloatingSign() throws IOException {
+        List<String> lines = Arrays.asList(
+            "   -45",
+            "+00045",
+            "   120",
+            "    -0",
+            "  -120",
+            "     7");
+        List<String> sorted = sort(lines, SortFields.of(1, 6, Format.FS, Order.A));
+        Assertions.assertEquals(Arrays.asList(
+            "  -120",
+            "   -45",
+            "    -0",
+            "     7",
+            "+00045",
+            "   120"), sorted);
+    }
+
+    @Test
+    public void testDuplicates() throws IOException {
+        final File source = File.createTempFile("flds-", ".txt");
+        final File target = File.createTempFile("sort-", ".txt");
+        Files.write(source.toPath(), Arrays.asList(
+            "00012A",
+            "00005B",
+            "+0012C",
+            "   5 D"), StandardCharsets.ISO_8859_1);
+        SortEngine.using(256)
+            .sortIn(source)
+            .sort(SortFields.of(1, 5, Format.FS, Order.A))
+            .first()
+            .sortOut(target);
+        Assertions.assertEquals(Arrays.asList(
+            "00005B",
+            "00012A"), Files.readAllLines(target.toPath()));
+    }
+
+    @Test
+    public void testRadix() throws IOException {
+        final File source = File.createTempFile("flds-", ".txt");
+        final File target = File.createTempFile("sort-", ".txt");
+        Random random = new Random(155);
+        String[] zoned = { "{", "A", "B", "}", "J", "K" };
+        List<String> lines = new ArrayList<>();
+        for (int k = 0; k < 20000; k++) {
+            lines.add(String.format("%c%03d%s%6d#%05d",
+                (char) ('A' + random.nextInt(3)),
+                random.nextInt(20),
+                zoned[random.nextInt(zoned.length)],
+                random.nextInt(2001) - 1000,
+                k));
+        }
+        Files.write(source.toPath(), lines, StandardCharsets.ISO_8859_1);
+        SortFields fields = SortFields.of(1, 1, Format.CH, Order.D)
+            .and(2, 4, Format.ZD, Order.A)
+            .and(6, 6, Format.FS, Order.D);
+        SortEngine.builder()
+                .withMaxRecord(3000)
+                .withCharset(StandardCharsets.ISO_8859_1)
+                .build()
+            .sortIn(source)
+            .sort(fields)
+            .sortOut(target);
+        List<String> expected = new ArrayList<>(lines);
+        Collections.sort(expected, fields);     // stable
+        Assertions.assertEquals(expected, Files.readAllLines(target.toPath(), StandardCharsets.ISO_8859_1));
+    }
+}
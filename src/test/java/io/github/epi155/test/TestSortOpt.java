@@ -1,7 +1,11 @@
 package io.github.epi155.test;
 
+import io.github.epi155.pm.sort.OutFil;
 import io.github.epi155.pm.sort.RecordAccumulator;
+import io.github.epi155.pm.sort.RecordIterator;
 import io.github.epi155.pm.sort.SortEngine;
+import io.github.epi155.pm.sort.SortException;
+import io.github.epi155.pm.sort.SortFields;
 import io.github.epi155.pm.sort.SumFields;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
@@ -12,7 +16,13 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TestSortOpt {
     Comparator<String> com = Comparator.comparing(o -> o.substring(0, 3));
@@ -364,4 +374,354 @@ public class TestSortOpt {
         Assertions.assertArrayEquals(s2, s3);
 
     }
+    static class AmountSum extends SumFields {
+        long amount;
+        @Override
+        protected void reset() {
+            amount = 0;
+        }
+
+        @Override
+        protected void add(String line) {
+            amount += Long.parseLong(line.substring(3));
+        }
+
+        @Override
+        protected String getSummary(String line) {
+            return line.substring(0, 3) + String.format("%09d", amount);
+        }
+
+        @Override
+        protected boolean isAssociative() {
+            return true;
+        }
+    }
+    @Test
+    public void testCombiner() throws IOException {
+        final File source = File.createTempFile("rand-", ".txt");
+        Random random = new Random();
+        TreeMap<String, Long> sums = new TreeMap<>();
+        TreeMap<String, String> firsts = new TreeMap<>();
+        TreeMap<String, String> lasts = new TreeMap<>();
+        try (BufferedWriter bw = Files.newBufferedWriter(Paths.get(source.getAbsolutePath()), StandardCharsets.UTF_8)) {
+            for (int k = 0; k < 5000; k++) {
+                // few keys, many duplicates
+                String key = String.format("%03d", random.nextInt(40));
+                int amount = random.nextInt(1000);
+                String line = key + String.format("%09d", amount);
+                bw.write(line);
+                bw.newLine();
+                sums.merge(key, (long) amount, Long::sum);
+                firsts.putIfAbsent(key, line);
+                lasts.put(key, line);
+            }
+        }
+        List<String> expected = new ArrayList<>();
+        sums.forEach((key, amount) -> expected.add(key + String.format("%09d", amount)));
+        final File target = File.createTempFile("sum-", ".txt");
+        for (boolean replacementSelection : new boolean[]{false, true}) {
+            SortEngine.builder()
+                    .withMaxRecord(50)
+                    .withMaxThread(3)
+                    .withReplacementSelection(replacementSelection)
+                    .withFanIn(3)
+                    .build()
+                .sortIn(source)
+                .sort(com)
+                .sum(new AmountSum())
+                .sortOut(target);
+            Assertions.assertEquals(expected, Files.readAllLines(target.toPath()));
+
+            SortEngine.builder()
+                    .withMaxRecord(50)
+                    .withMaxThread(3)
+                    .withReplacementSelection(replacementSelection)
+                    .withFanIn(3)
+                    .build()
+                .sortIn(source)
+                .sort(com)
+                .first()
+                .sortOut(target);
+            Assertions.assertEquals(new ArrayList<>(firsts.values()), Files.readAllLines(target.toPath()));
+
+            SortEngine.builder()
+                    .withMaxRecord(50)
+                    .withMaxThread(3)
+                    .withReplacementSelection(replacementSelection)
+                    .withFanIn(3)
+                    .build()
+                .sortIn(source)
+                .sort(com)
+                .last()
+                .sortOut(target);
+            Assertions.assertEquals(new ArrayList<>(lasts.values()), Files.readAllLines(target.toPath()));
+
+            // keyed records: the reduced ones keep the carried key, extracted once per input record
+            final AtomicInteger extracted = new AtomicInteger();
+            SortEngine.builder()
+                    .withMaxRecord(50)
+                    .withMaxThread(3)
+                    .withReplacementSelection(replacementSelection)
+                    .withFanIn(3)
+                    .build()
+                .sortIn(source)
+                .sort(line -> {
+                    extracted.incrementAndGet();
+                    return line.substring(0, 3).getBytes(StandardCharsets.US_ASCII);
+                })
+                .sum(new AmountSum())
+                .sortOut(target);
+            Assertions.assertEquals(expected, Files.readAllLines(target.toPath()));
+            Assertions.assertEquals(5000, extracted.get());
+        }
+    }
+    @Test
+    public void testPreAggregation() throws IOException {
+        Random random = new Random();
+        TreeMap<String, Long> sums = new TreeMap<>();
+        TreeMap<String, Long> sums0 = new TreeMap<>();
+        File[] sources = new File[3];
+        for (int n = 0; n < sources.length; n++) {
+            sources[n] = File.createTempFile("rand-", ".txt");
+            try (BufferedWriter bw = Files.newBufferedWriter(sources[n].toPath(), StandardCharsets.UTF_8)) {
+                for (int k = 0; k < 4000; k++) {
+                    String key = String.format("%03d", random.nextInt(40));
+                    int amount = random.nextInt(1000);
+                    bw.write(key + String.format("%09d", amount));
+                    bw.newLine();
+                    sums.merge(key, (long) amount, Long::sum);
+                    if (n == 0)
+                        sums0.merge(key, (long) amount, Long::sum);
+                }
+            }
+        }
+        List<String> expected0 = new ArrayList<>();
+        sums0.forEach((key, amount) -> expected0.add(key + String.format("%09d", amount)));
+        List<String> expected = new ArrayList<>();
+        sums.forEach((key, amount) -> expected.add(key + String.format("%09d", amount)));
+        // partial sums combined without the accumulator
+        SumFields fastSum = new AmountSum() {
+            @Override
+            protected String combine(String summary1, String summary2) {
+                long total = Long.parseLong(summary1.substring(3)) + Long.parseLong(summary2.substring(3));
+                return summary1.substring(0, 3) + String.format("%09d", total);
+            }
+        };
+        final File target = File.createTempFile("sum-", ".txt");
+        for (SumFields rule : new SumFields[]{new AmountSum(), fastSum}) {
+            // table smaller than the distinct keys: the partial sums are saved and merged
+            SortEngine.using(16)
+                .sortIn(sources[0])
+                .sort(com)
+                .sum(rule)
+                .sortOut(target);
+            Assertions.assertEquals(expected0, Files.readAllLines(target.toPath()));
+
+            SortEngine.using(16)
+                .sortIn(sources)
+                .sort(SortFields.of(1, 3, SortFields.Format.CH, SortFields.Order.A))
+                .sum(rule)
+                .sortOut(target);
+            Assertions.assertEquals(expected, Files.readAllLines(target.toPath()));
+
+            // the whole table in memory: a single chunk
+            SortEngine.using(1000)
+                .sortIn(Arrays.asList(sources[0].toPath(), sources[1].toPath(), sources[2].toPath()))
+                .sort(com)
+                .sum(rule)
+                .sortOut(target);
+            Assertions.assertEquals(expected, Files.readAllLines(target.toPath()));
+        }
+    }
+
+    @Test
+    public void testGroupBy() throws IOException {
+        Random random = new Random();
+        TreeMap<String, Long> sums = new TreeMap<>();
+        TreeMap<String, Long> counts = new TreeMap<>();
+        final File source = File.createTempFile("rand-", ".txt");
+        try (BufferedWriter bw = Files.newBufferedWriter(source.toPath(), StandardCharsets.UTF_8)) {
+            for (int k = 0; k < 20000; k++) {
+                String key = String.format("%03d", random.nextInt(500));
+                int amount = random.nextInt(1000);
+                bw.write(key + String.format("%09d", amount));
+                bw.newLine();
+                sums.merge(key, (long) amount, Long::sum);
+                counts.merge(key, 1L, Long::sum);
+            }
+        }
+        List<String> expected = new ArrayList<>();
+        sums.forEach((key, amount) -> expected.add(key + String.format("%09d", amount)));
+        List<String> expectedCount = new ArrayList<>();
+        counts.forEach((key, count) -> expectedCount.add(key + String.format("%03d", count)));
+        SumFields plainSum = new AmountSum() {
+            @Override
+            protected boolean isAssociative() {
+                return false;
+            }
+        };
+        final File target = File.createTempFile("grp-", ".txt");
+        // 20000 records in memory: a single table; 64 records: partitions of partitions
+        for (int maxRecord : new int[]{20000, 1000, 64}) {
+            for (SumFields rule : new SumFields[]{new AmountSum(), plainSum}) {
+                SortEngine.using(maxRecord)
+                    .sortIn(source)
+                    .groupBy(SortFields.of(1, 3, SortFields.Format.CH, SortFields.Order.A))
+                    .sum(rule)
+                    .sortOut(target);
+                List<String> actual = Files.readAllLines(target.toPath());
+                actual.sort(null);
+                Assertions.assertEquals(expected, actual);
+            }
+            List<String> actual = new ArrayList<>();
+            try (RecordIterator it = SortEngine.using(maxRecord)
+                .sortIn(source)
+                .groupBy(line -> line.substring(0, 3).getBytes(StandardCharsets.US_ASCII))
+                .reduce(new GroupCount())
+                .sortOut()) {
+                it.forEachRemaining(actual::add);
+            }
+            actual.sort(null);
+            Assertions.assertEquals(expectedCount, actual);
+        }
+
+        File[] parts = new File[3];
+        for (int k = 0; k < parts.length; k++) {
+            parts[k] = File.createTempFile("grp-", ".txt");
+        }
+        for (SumFields rule : new SumFields[]{new AmountSum(), plainSum}) {
+            SortEngine.using(64)
+                .sortIn(source)
+                .groupBy(SortFields.of(1, 3, SortFields.Format.CH, SortFields.Order.A))
+                .sum(rule)
+                .outRec(line -> line + "*")
+                .sortOut(parts);
+            List<String> actual = new ArrayList<>();
+            for (File part : parts) {
+                List<String> lines = Files.readAllLines(part.toPath());
+                Assertions.assertFalse(lines.isEmpty());
+                for (String line : lines) {
+                    actual.add(line.substring(0, line.length() - 1));
+                }
+            }
+            actual.sort(null);
+            Assertions.assertEquals(expected, actual);  // each key in a single partition
+        }
+    }
+
+    @Test
+    public void testTopN() throws IOException {
+        Random random = new Random();
+        List<String> lines = new ArrayList<>();
+        final File source = File.createTempFile("rand-", ".txt");
+        try (BufferedWriter bw = Files.newBufferedWriter(source.toPath(), StandardCharsets.UTF_8)) {
+            for (int k = 0; k < 20000; k++) {
+                // few keys: the equal records must stay in input order
+                String line = String.format("%03d%09d", random.nextInt(300), k);
+                bw.write(line);
+                bw.newLine();
+                lines.add(line);
+            }
+        }
+        List<String> sorted = new ArrayList<>(lines);
+        sorted.sort(com);
+        final File target = File.createTempFile("top-", ".txt");
+        // 100 records in a heap, 100 from the merge of 16-record files
+        for (int maxRecord : new int[]{1000, 16}) {
+            SortEngine.using(maxRecord)
+                .sortIn(source)
+                .sort(com)
+                .limit(100)
+                .sortOut(target);
+            Assertions.assertEquals(sorted.subList(0, 100), Files.readAllLines(target.toPath()));
+        }
+        SortEngine.builder()
+                .withMaxMemory(8 * 1024)
+                .build()
+            .sortIn(source)
+            .sort(SortFields.of(1, 3, SortFields.Format.CH, SortFields.Order.A))
+            .limit(500)
+            .outRec(line -> line + "*")
+            .sortOut(target);
+        List<String> expected = new ArrayList<>();
+        for (String line : sorted.subList(0, 500)) {
+            expected.add(line + "*");
+        }
+        Assertions.assertEquals(expected, Files.readAllLines(target.toPath()));
+        // heaps of about 20 records saved: the later ones keep only the records below the cutoff, ties after it
+        SortEngine.builder()
+                .withMaxMemory(2 * 1024)
+                .build()
+            .sortIn(source)
+            .sort(SortFields.of(1, 3, SortFields.Format.CH, SortFields.Order.A))
+            .limit(50)
+            .sortOut(target);
+        Assertions.assertEquals(sorted.subList(0, 50), Files.readAllLines(target.toPath()));
+
+        // a reduction: the final merge stops early
+        List<String> firsts = new ArrayList<>();
+        for (String line : sorted) {
+            if (firsts.isEmpty() || !firsts.get(firsts.size() - 1).startsWith(line.substring(0, 3)))
+                firsts.add(line);
+        }
+        for (int maxRecord : new int[]{20000, 1000}) {
+            List<String> actual = new ArrayList<>();
+            try (RecordIterator it = SortEngine.using(maxRecord)
+                .sortIn(source)
+                .sort(com)
+                .first()
+                .limit(10)
+                .sortOut()) {
+                it.forEachRemaining(actual::add);
+            }
+            Assertions.assertEquals(firsts.subList(0, 10), actual);
+        }
+    }
+
+    @Test
+    public void testOutFil() throws IOException {
+        Random random = new Random();
+        List<String> lines = new ArrayList<>();
+        final File source = File.createTempFile("rand-", ".txt");
+        try (BufferedWriter bw = Files.newBufferedWriter(source.toPath(), StandardCharsets.UTF_8)) {
+            for (int k = 0; k < 10000; k++) {
+                // region code, key, sequence
+                String line = "NSEW".charAt(random.nextInt(4)) + String.format("%03d%06d", random.nextInt(1000), k);
+                bw.write(line);
+                bw.newLine();
+                lines.add(line);
+            }
+        }
+        Comparator<String> byKey = Comparator.comparing(o -> o.substring(1, 4));
+        List<String> sorted = new ArrayList<>(lines);
+        sorted.sort(byKey);
+        List<String> north = new ArrayList<>();
+        List<String> south = new ArrayList<>();
+        for (String line : sorted) {
+            if (line.startsWith("N"))
+                north.add(line);
+            else if (line.startsWith("S"))
+                south.add(line.substring(1));
+        }
+        final File northFile = File.createTempFile("north-", ".txt");
+        final File southFile = File.createTempFile("south-", ".txt");
+        final File allFile = File.createTempFile("all-", ".txt");
+        // a single chunk, and merged files
+        for (int maxRecord : new int[]{20000, 256}) {
+            SortEngine.using(maxRecord)
+                .sortIn(source)
+                .sort(byKey)
+                .sortOut(OutFil.of(northFile).include(s -> s.startsWith("N")),
+                         OutFil.of(southFile).include(s -> s.startsWith("S")).outRec(s -> s.substring(1)),
+                         OutFil.of(allFile));
+            Assertions.assertEquals(north, Files.readAllLines(northFile.toPath()));
+            Assertions.assertEquals(south, Files.readAllLines(southFile.toPath()));
+            Assertions.assertEquals(sorted, Files.readAllLines(allFile.toPath()));
+        }
+        // a failed output: the other files are closed, the error reaches the caller
+        Assertions.assertThrows(SortException.class, () -> SortEngine.using(256)
+            .sortIn(source)
+            .sort(byKey)
+            .sortOut(OutFil.of(allFile), OutFil.of(new File("/dev/full"))));
+    }
 }